@@ -1,6 +1,8 @@
 package nextflow.htsjdk
 
 import groovy.transform.PackageScope
+import java.util.concurrent.atomic.AtomicReference
+import nextflow.util.MemoryUnit
 
 
 /**
@@ -24,14 +26,21 @@ import groovy.transform.PackageScope
 @PackageScope
 class HtsjdkConfig {
 	final private boolean resolveContigName;
-    final private List<HtsjdkUtils.Build> builds
+	/** the 'builds' of the config or null for the default builds */
+	final private Object buildsConfig
+	/** the builds are decoded on first use, most scripts never call build() */
+	final private AtomicReference<List<HtsjdkUtils.Build>> builds = new AtomicReference<>()
+	/** off-heap storage of the dictionaries, read groups and samples, disabled by default */
+	final private boolean metadataStoreEnabled;
+	final private long metadataStoreMaxMemory;
 
     HtsjdkConfig(Map map){
         def config = map ?: Collections.emptyMap()
 		this.resolveContigName = config.resolveContig?:true;
-        this.builds = config.containsKey("builds") 
-		? HtsjdkUtils.decodeBuilds(config.get("builds"))
-		: HtsjdkUtils.getDefaultBuilds();
+        this.buildsConfig = config.get("builds")
+		final Map store = (config.metadataStore ?: Collections.emptyMap()) as Map
+		this.metadataStoreEnabled = (store.enabled ?: false) as boolean;
+		this.metadataStoreMaxMemory = store.maxMemory ? new MemoryUnit(store.maxMemory.toString()).toBytes() : new MemoryUnit('256 MB').toBytes();
     }
 
 	public boolean isResolveContigName() {
@@ -39,6 +48,20 @@ class HtsjdkConfig {
 		}
 	
     List<HtsjdkUtils.Build> getBuilds() { 
-		return this.builds;
+		if(this.builds.get()==null) this.builds.compareAndSet(null, HtsjdkUtils.decodeBuilds(this.buildsConfig));
+		return this.builds.get();
+		}
+
+	/** true if the builds have already been decoded */
+	boolean isBuildsResolved() {
+		return this.builds.get()!=null;
+		}
+
+	boolean isMetadataStoreEnabled() {
+		return this.metadataStoreEnabled;
+		}
+
+	long getMetadataStoreMaxMemory() {
+		return this.metadataStoreMaxMemory;
 		}
 }
@@ -0,0 +1,152 @@
+/*
+The MIT License (MIT)
+
+Copyright (c) 2024 Pierre Lindenbaum
+
+Permission is hereby granted, free of charge, to any person obtaining a copy
+of this software and associated documentation files (the "Software"), to deal
+in the Software without restriction, including without limitation the rights
+to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+copies of the Software, and to permit persons to whom the Software is
+furnished to do so, subject to the following conditions:
+
+The above copyright notice and this permission notice shall be included in all
+copies or substantial portions of the Software.
+
+THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+SOFTWARE.
+
+*/
+package nextflow.htsjdk;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import htsjdk.samtools.seekablestream.SeekablePathStream;
+import htsjdk.samtools.util.BinaryCodec;
+import htsjdk.samtools.util.BlockCompressedInputStream;
+import htsjdk.samtools.util.FileExtensions;
+
+/**
+ * Minimal reader for the CSI index of a bgzipped VCF or of a BCF, as written by bcftools/htslib.
+ * htsjdk only queries VCF files with a TBI index, so this class finds the first BGZF virtual offset
+ * where the records of a region may start: the caller seeks there and reads the sorted records
+ * until it has passed the end of the region.
+ */
+class HtsjdkCsiIndex {
+	private final int minShift;
+	private final int depth;
+	/** names of the sequences from the tabix-like auxiliary data (VCF only), empty for BCF */
+	private final List<String> names;
+	/** for each reference: bin -> [loffset, chunk_beg0, chunk_end0, chunk_beg1, chunk_end1...] */
+	private final List<Map<Integer,long[]>> references;
+
+	HtsjdkCsiIndex(final Path path) throws IOException {
+		try(BlockCompressedInputStream in = new BlockCompressedInputStream(new SeekablePathStream(path))) {
+			final BinaryCodec codec = new BinaryCodec(in);
+			final byte[] magic = new byte[4];
+			codec.readBytes(magic);
+			if(magic[0]!='C' || magic[1]!='S' || magic[2]!='I' || magic[3]!=1) throw new IOException("not a CSI index "+path);
+			this.minShift = codec.readInt();
+			this.depth = codec.readInt();
+			final byte[] aux = new byte[codec.readInt()];
+			codec.readBytes(aux);
+			this.names = decodeNames(aux);
+			final int nRef = codec.readInt();
+			this.references = new ArrayList<>(nRef);
+			for(int i=0;i< nRef;i++) {
+				final int nBin = codec.readInt();
+				final Map<Integer,long[]> bins = new HashMap<>(nBin);
+				for(int j=0;j< nBin;j++) {
+					final int bin = (int)codec.readUInt();
+					final long loffset = codec.readLong();
+					final long[] chunks = new long[1 + 2 * codec.readInt()];
+					chunks[0] = loffset;
+					for(int k=1;k< chunks.length;k++) {
+						chunks[k] = codec.readLong();
+						}
+					bins.put(bin, chunks);
+					}
+				this.references.add(bins);
+				}
+			}
+		}
+
+	/** the tabix-like header of a VCF index: format, col_seq, col_beg, col_end, meta, skip, l_nm, names */
+	private static List<String> decodeNames(final byte[] aux) {
+		if(aux.length < 28) return Collections.emptyList();
+		final List<String> L = new ArrayList<>();
+		int start = 28;
+		for(int i=28;i< aux.length;i++) {
+			if(aux[i]!=0) continue;
+			L.add(new String(aux, start, i-start));
+			start = i+1;
+			}
+		return L;
+		}
+
+	/** returns the CSI index of a local file or null if there is none */
+	static Path find(final HtsjdkUtils.HtsSource source) {
+		if(!source.isLocal()) return null;
+		final Path csi = Paths.get(source.asPath().toString() + FileExtensions.CSI);
+		return Files.exists(csi) ? csi : null;
+		}
+
+	/** sequence names of a bgzipped VCF index, empty for a BCF index where the ids follow the contig lines of the header */
+	List<String> getSequenceNames() {
+		return this.names;
+		}
+
+	/**
+	 * returns the virtual offset where the records of the 1-based region [start,end] of the
+	 * reference 'tid' may start, or -1 if there is no such record.
+	 */
+	long getStartOffset(int tid,int start,int end) {
+		if(tid<0 || tid>=this.references.size()) return -1L;
+		final Map<Integer,long[]> bins = this.references.get(tid);
+		final long maxPos = 1L << (this.minShift + 3 * this.depth);
+		final long beg = Math.max(0L, start - 1L);
+		final long last = Math.min(maxPos, (long)end) - 1L;
+		if(last < beg) return -1L;
+		/* lower bound: the loffset of the smallest existing bin containing 'beg' */
+		long lower = 0L;
+		for(int level=this.depth, s=this.minShift; level>=0; level--, s+=3) {
+			final long[] chunks = bins.get(firstBin(level) + (int)(beg >> s));
+			if(chunks!=null) {
+				lower = chunks[0];
+				break;
+				}
+			}
+		long best = -1L;
+		for(int level=0, s=this.minShift + 3 * this.depth; level<=this.depth; level++, s-=3) {
+			final int t = firstBin(level);
+			for(long b = t + (beg >> s); b <= t + (last >> s); b++) {
+				final long[] chunks = bins.get((int)b);
+				if(chunks==null) continue;
+				for(int k=1;k+1< chunks.length;k+=2) {
+					if(Long.compareUnsigned(chunks[k+1], lower) <= 0) continue;
+					final long off = Long.compareUnsigned(chunks[k], lower) < 0 ? lower : chunks[k];
+					if(best==-1L || Long.compareUnsigned(off, best) < 0) best = off;
+					}
+				}
+			}
+		return best;
+		}
+
+	/** index of the first bin of a level: (8^level - 1) / 7 */
+	private static int firstBin(int level) {
+		return ((1 << (3 * level)) - 1) / 7;
+		}
+	}
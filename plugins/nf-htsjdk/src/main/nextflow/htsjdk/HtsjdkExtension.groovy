@@ -43,6 +43,11 @@ import htsjdk.samtools.SAMException
 import java.util.Arrays;
 import htsjdk.samtools.util.FileExtensions;
 import htsjdk.samtools.util.StringUtil
+import htsjdk.samtools.util.CloseableIterator
+import htsjdk.samtools.util.Interval
+import htsjdk.samtools.util.SequenceUtil
+import java.nio.file.Files
+import java.nio.file.Path
 import nextflow.htsjdk.HtsjdkUtils;
 import nextflow.htsjdk.HtsjdkUtils.Build
 
@@ -74,6 +79,11 @@ class HtsjdkExtension extends PluginExtensionPoint {
      */
      private HtsjdkConfig config
 
+    /*
+     * off-heap store for the dictionaries, read groups and samples, null if disabled
+     */
+    private HtsjdkMetadataStore metadataStore
+
     /*
      * nf-core initializes the plugin once loaded and session is ready
      * @param session
@@ -82,6 +92,9 @@ class HtsjdkExtension extends PluginExtensionPoint {
     protected void init(Session session) {
         this.session = session
         this.config = new HtsjdkConfig(session.config.navigate('htsjdk') as Map)
+        if(this.config.isMetadataStoreEnabled()) {
+            this.metadataStore = new HtsjdkMetadataStore(this.config.getMetadataStoreMaxMemory())
+        }
     }
 
 	
@@ -121,14 +134,24 @@ class HtsjdkExtension extends PluginExtensionPoint {
 		for(Object k: params.keySet()) {
 			throw new IllegalArgumentException("\""+k+"\" is not a valid key.");
 			}		
+		final SAMSequenceDictionary dict = extractDictionary(source);
+		if(this.metadataStore!=null) {
+			final HtsjdkMetadataStore.DictionaryHandle handle = this.metadataStore.putDictionary(dict);
+			if(handle!=null) return handle;
+			warnMetadataStoreFull();
+			}
+		return dict;
+    	}
+
+	private SAMSequenceDictionary extractDictionary(Object source) {
 		final HtsjdkUtils.HtsSource htsfile = HtsjdkUtils.findHtsSource(source ,{HTS->HTS.isBamCramSam() || HTS.isVcf() || HTS.isDict()|| HTS.isFai()| HTS.isFasta() || HTS.isIntervalList()});
 		return htsfile.extractDictionary();
-    	}
+		}
 	
     @Function
 	Object build(Object source, Map params = null) {
 		if(params==null) params=[:]
-		final SAMSequenceDictionary dict= SAMSequenceDictionary.class.cast( dictionary(source,[:]) );
+		final SAMSequenceDictionary dict= extractDictionary(source);
 		if(dict==null) return null;
 		//validate params
 		for(Object k: params.keySet()) {
@@ -152,7 +175,13 @@ class HtsjdkExtension extends PluginExtensionPoint {
 			}
 						
 		final HtsjdkUtils.HtsSource htsfile = HtsjdkUtils.findHtsSource(source,{HTS->HTS.isBamCramSam() || HTS.isIntervalList() });
-		return htsfile.extractReadGroups();
+		final Collection readGroups = htsfile.extractReadGroups();
+		if(this.metadataStore!=null) {
+			final Collection handle = this.metadataStore.putReadGroups(readGroups);
+			if(handle!=null) return handle;
+			warnMetadataStoreFull();
+			}
+		return readGroups;
 		}
 		
 	@Function
@@ -171,9 +200,199 @@ class HtsjdkExtension extends PluginExtensionPoint {
 		if(samples.isEmpty() && defaultName!=null) {
 			samples = Collections.singletonList(defaultName);
 			}
+		else if(this.metadataStore!=null) {
+			final Collection handle = this.metadataStore.putStrings(samples);
+			if(handle!=null) return handle;
+			warnMetadataStoreFull();
+			}
 		return samples;
 		}
+
+	/**
+	 * extract the genotypes of a VCF/BCF as a HtsjdkGenotypeMatrix (2 bits per call).
+	 * When 'chunkSize' is defined, returns a collection of matrices of at most 'chunkSize' sites, read lazily (see HtsjdkGenotypeMatrix.Chunks).
+	 */
+	@Function
+	Object genotypeMatrix(Object source, Map params = null) {
+		if(params==null) params=[:]
+		//validate params
+		for(Object k: params.keySet()) {
+			if(k.equals("samples") || k.equals("regions") || k.equals("chunkSize")) continue;
+			throw new IllegalArgumentException("\""+k+"\" is not a valid key.");
+			}
+		final HtsjdkUtils.HtsSource htsfile = HtsjdkUtils.findHtsSource(source,{HTS->HTS.isVcf()});
+		final Collection<String> samples = (params.get("samples")==null
+			? null
+			: (params.get("samples") instanceof Collection ? Collection.class.cast(params.get("samples")) : [params.get("samples")]).collect{String.valueOf(it)});
+		final Object regionsObj = params.get("regions");
+		final List<Interval> regions = HtsjdkGenotypeMatrix.parseRegions(regionsObj==null
+			? new ArrayList<String>()
+			: (regionsObj instanceof Collection ? Collection.class.cast(regionsObj) : [regionsObj]).collect{String.valueOf(it)});
+		if(params.containsKey("chunkSize")) {
+			return new HtsjdkGenotypeMatrix.Chunks(htsfile, samples, regions, params.get("chunkSize") as int);
+			}
+		return new HtsjdkGenotypeMatrix.Reader(htsfile, samples, regions, Integer.MAX_VALUE).readAll();
+		}
+
+	/** returns the footprint of the off-heap metadata store, or an empty map if the store is disabled */
+	@Function
+	Map metadataStoreFootprint() {
+		return this.metadataStore==null ? Collections.emptyMap() : this.metadataStore.getFootprint();
+		}
+
+	private boolean metadataStoreFullReported = false;
+
+	private void warnMetadataStoreFull() {
+		if(this.metadataStoreFullReported) return;
+		this.metadataStoreFullReported = true;
+		log.warn("htsjdk.metadataStore is full (${this.metadataStore}). Metadata are now kept on the java heap. Consider increasing htsjdk.metadataStore.maxMemory.");
+		}
 		
+	/** parameters shared by the interval functions */
+	private static final List<String> INTERVALS_PARAMS = ["output","format","dictionary","maxRecordsInRam","tmpDir"];
+
+	@Function
+	Path sortIntervals(Object source, Map params = null) {
+		return intervalsOperation(source, null, params, [], { HtsjdkIntervals I, CloseableIterator<Interval> A, CloseableIterator<Interval> B, HtsjdkIntervals.IntervalWriter w ->
+			while(A.hasNext()) w.accept(A.next());
+			});
+		}
+
+	@Function
+	Path mergeIntervals(Object source, Map params = null) {
+		return intervalsOperation(source, null, params, [], { HtsjdkIntervals I, CloseableIterator<Interval> A, CloseableIterator<Interval> B, HtsjdkIntervals.IntervalWriter w ->
+			final CloseableIterator<Interval> iter = I.merged(A);
+			while(iter.hasNext()) w.accept(iter.next());
+			});
+		}
+
+	@Function
+	Path padIntervals(Object source, Map params = null) {
+		if(params==null || !params.containsKey("padding")) throw new IllegalArgumentException("padIntervals: \"padding\" is undefined.");
+		return intervalsOperation(source, null, params, ["padding"], { HtsjdkIntervals I, CloseableIterator<Interval> A, CloseableIterator<Interval> B, HtsjdkIntervals.IntervalWriter w ->
+			while(A.hasNext()) w.accept(A.next());
+			});
+		}
+
+	@Function
+	Path intersectIntervals(Object source, Object other, Map params = null) {
+		if(other==null) throw new IllegalArgumentException("intersectIntervals: other cannot be null");
+		return intervalsOperation(source, other, params, [], { HtsjdkIntervals I, CloseableIterator<Interval> A, CloseableIterator<Interval> B, HtsjdkIntervals.IntervalWriter w ->
+			I.intersect(I.merged(A), I.merged(B), w);
+			});
+		}
+
+	@Function
+	Path subtractIntervals(Object source, Object other, Map params = null) {
+		if(other==null) throw new IllegalArgumentException("subtractIntervals: other cannot be null");
+		return intervalsOperation(source, other, params, [], { HtsjdkIntervals I, CloseableIterator<Interval> A, CloseableIterator<Interval> B, HtsjdkIntervals.IntervalWriter w ->
+			I.subtract(I.merged(A), I.merged(B), w);
+			});
+		}
+
+	/** convert one source or a collection of sources to a list of interval_list/BED files */
+	private List<HtsjdkUtils.HtsSource> toIntervalSources(Object source) {
+		if(source==null) throw new IllegalArgumentException("source cannot be null");
+		final Collection sources = (source instanceof Collection ? Collection.class.cast(source) : [source]);
+		if(sources.isEmpty()) throw new IllegalArgumentException("no interval source was provided");
+		final List<HtsjdkUtils.HtsSource> L = [];
+		for(Object o: sources) {
+			L.add(HtsjdkUtils.findHtsSource(o,{HTS->HTS.isIntervalList() || HTS.isBed()}));
+			}
+		return L;
+		}
+
+	/**
+	 * common code for the interval functions: validate the parameters, find the dictionary,
+	 * stream the sorted (and padded) intervals of 'source' and 'other' to 'operation' and
+	 * return the path of the interval_list/BED that was written
+	 */
+	private Path intervalsOperation(Object source, Object other, Map params, List<String> extraParams, Closure operation) {
+		if(params==null) params=[:]
+		//validate params
+		for(Object k: params.keySet()) {
+			if(INTERVALS_PARAMS.contains(k) || extraParams.contains(k)) continue;
+			throw new IllegalArgumentException("\""+k+"\" is not a valid key.");
+			}
+		final List<HtsjdkUtils.HtsSource> sourcesA = toIntervalSources(source);
+		final List<HtsjdkUtils.HtsSource> sourcesB = (other==null ? new ArrayList<HtsjdkUtils.HtsSource>() : toIntervalSources(other));
+
+		// the dictionary is the one of the 'dictionary' parameter or the one of the interval_lists
+		SAMSequenceDictionary dict = (params.containsKey("dictionary")
+			? extractDictionary(params.get("dictionary"))
+			: null);
+		for(HtsjdkUtils.HtsSource src : (sourcesA + sourcesB)) {
+			if(!src.isIntervalList()) continue;
+			final SAMSequenceDictionary dict2 = src.extractDictionary();
+			if(dict==null) {
+				dict = dict2;
+				}
+			else
+				{
+				SequenceUtil.assertSequenceDictionariesEqual(dict, dict2);
+				}
+			}
+		if(dict==null) throw new IllegalArgumentException("Cannot find a dictionary for "+sourcesA+" "+sourcesB+". Use the 'dictionary' parameter.");
+
+		final int padding = (params.containsKey("padding") ? (params.get("padding") as int) : 0);
+		final int maxRecordsInRam = (params.containsKey("maxRecordsInRam") ? (params.get("maxRecordsInRam") as int) : HtsjdkIntervals.DEFAULT_MAX_RECORDS_IN_RAM);
+		final Path tmpDir = (params.containsKey("tmpDir") ? toPath(params.get("tmpDir")) : null);
+
+		final Path output;
+		final HtsjdkIntervals.Format format;
+		if(params.containsKey("output")) {
+			output = toPath(params.get("output"));
+			format = (params.containsKey("format") ? toIntervalFormat(params.get("format")) : HtsjdkIntervals.Format.of(output.getFileName().toString()));
+			}
+		else
+			{
+			format = (params.containsKey("format") ? toIntervalFormat(params.get("format")) : HtsjdkIntervals.Format.INTERVAL_LIST);
+			final Path dir = session.getWorkDir().resolve("tmp");
+			Files.createDirectories(dir);
+			output = dir.resolve("intervals."+UUID.randomUUID().toString()+format.getSuffix());
+			}
+
+		final HtsjdkIntervals intervals = new HtsjdkIntervals(dict, maxRecordsInRam, tmpDir);
+		CloseableIterator<Interval> iterA = null;
+		CloseableIterator<Interval> iterB = null;
+		try {
+			iterA = intervals.sorted(sourcesA, padding);
+			iterB = (other==null ? null : intervals.sorted(sourcesB, 0));
+			final HtsjdkIntervals.IntervalWriter w = intervals.openWriter(output, format);
+			try {
+				try {
+					operation.call(intervals, iterA, iterB, w);
+					}
+				finally {
+					w.close();
+					}
+				}
+			catch(Throwable err) {
+				// a truncated output must not look like a valid result
+				Files.deleteIfExists(output);
+				throw err;
+				}
+			}
+		finally {
+			if(iterA!=null) iterA.close();
+			if(iterB!=null) iterB.close();
+			}
+		return output;
+		}
+
+	private static Path toPath(Object o) {
+		return HtsjdkUtils.toHtsSource(o).
+			orElseThrow({new IllegalArgumentException("Cannot convert "+o+" to a path")}).
+			asPath();
+		}
+
+	private static HtsjdkIntervals.Format toIntervalFormat(Object o) {
+		final String s = String.valueOf(o).toLowerCase();
+		if(s.equals("bed")) return HtsjdkIntervals.Format.BED;
+		if(s.equals("interval_list") || s.equals("intervals")) return HtsjdkIntervals.Format.INTERVAL_LIST;
+		throw new IllegalArgumentException("unknown interval format \""+o+"\". Expected 'bed' or 'interval_list'.");
+		}
+
 	private Build findBuild(boolean resolveContig,final SAMSequenceDictionary dict) {
 		return getConfig().getBuilds().stream().filter(B->B.match(resolveContig,dict)).findFirst().orElse(null);
 		}
@@ -0,0 +1,900 @@
+/*
+The MIT License (MIT)
+
+Copyright (c) 2024 Pierre Lindenbaum
+
+Permission is hereby granted, free of charge, to any person obtaining a copy
+of this software and associated documentation files (the "Software"), to deal
+in the Software without restriction, including without limitation the rights
+to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+copies of the Software, and to permit persons to whom the Software is
+furnished to do so, subject to the following conditions:
+
+The above copyright notice and this permission notice shall be included in all
+copies or substantial portions of the Software.
+
+THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+SOFTWARE.
+
+*/
+package nextflow.htsjdk;
+
+import java.io.BufferedReader;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.AbstractCollection;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.stream.Collectors;
+
+import htsjdk.samtools.SAMSequenceDictionary;
+import htsjdk.samtools.seekablestream.SeekablePathStream;
+import htsjdk.samtools.util.BlockCompressedInputStream;
+import htsjdk.samtools.util.FileExtensions;
+import htsjdk.samtools.util.Interval;
+import htsjdk.samtools.util.StringUtil;
+import htsjdk.tribble.readers.PositionalBufferedStream;
+import htsjdk.tribble.readers.TabixReader;
+import htsjdk.variant.bcf2.BCF2Codec;
+import htsjdk.variant.bcf2.BCF2Utils;
+import htsjdk.variant.variantcontext.Allele;
+import htsjdk.variant.variantcontext.Genotype;
+import htsjdk.variant.variantcontext.GenotypesContext;
+import htsjdk.variant.variantcontext.LazyGenotypesContext;
+import htsjdk.variant.variantcontext.VariantContext;
+import htsjdk.variant.vcf.VCFConstants;
+import htsjdk.variant.vcf.VCFHeader;
+import htsjdk.variant.vcf.VCFIterator;
+
+/**
+ * Columnar genotype matrix: the calls of each site are packed with 2 bits per sample in a long array,
+ * the site metadata are stored in parallel arrays of primitives: contig index, position, and the
+ * offsets of ID, REF and ALT in a pool of UTF-8 bytes.
+ *
+ * The calls follow the semantics of htsjdk's Genotype.getType(): HOM_REF, HET, HOM_VAR and NO_CALL
+ * (NO_CALL also covers the partially called 'MIXED' genotypes).
+ */
+public class HtsjdkGenotypeMatrix {
+	public static final int HOM_REF = 0;
+	public static final int HET = 1;
+	public static final int HOM_VAR = 2;
+	public static final int NO_CALL = 3;
+	/** 2 bits per call */
+	private static final int CALLS_PER_WORD = 32;
+	/** BCF types of the integers */
+	private static final int BCF_INT8 = 1;
+	private static final int BCF_INT16 = 2;
+	private static final int BCF_INT32 = 3;
+
+	private final List<String> samples;
+	private final int wordsPerSite;
+	/** contig names, shared by the chunks of the same reader */
+	private final List<String> contigs;
+	private final Map<String,Integer> contig2id;
+	private int siteCount = 0;
+	private int[] contigIds = new int[0];
+	private int[] positions = new int[0];
+	/** the text of the field 'f' (0:ID, 1:REF, 2:ALT) of site 's' is textPool[textOffsets[3*s+f], textOffsets[3*s+f+1]) */
+	private int[] textOffsets = new int[1];
+	private byte[] textPool = new byte[0];
+	private int textLength = 0;
+	private long[] calls = new long[0];
+
+	private HtsjdkGenotypeMatrix(final List<String> samples, final List<String> contigs,final Map<String,Integer> contig2id) {
+		this.samples = Collections.unmodifiableList(samples);
+		this.wordsPerSite = (samples.size() + CALLS_PER_WORD - 1) / CALLS_PER_WORD;
+		this.contigs = contigs;
+		this.contig2id = contig2id;
+		}
+
+	/** add a new site, all the calls are HOM_REF. Returns the index of the site */
+	private int addSite(final String contig,int pos,final String id,final String ref,final String alt) {
+		if(this.siteCount==this.positions.length) {
+			final int n = Math.max(16, this.siteCount*2);
+			this.contigIds = Arrays.copyOf(this.contigIds, n);
+			this.positions = Arrays.copyOf(this.positions, n);
+			this.textOffsets = Arrays.copyOf(this.textOffsets, 3 * n + 1);
+			this.calls = Arrays.copyOf(this.calls, n * this.wordsPerSite);
+			}
+		Integer tid = this.contig2id.get(contig);
+		if(tid==null) {
+			tid = this.contigs.size();
+			this.contigs.add(contig);
+			this.contig2id.put(contig, tid);
+			}
+		final int site = this.siteCount++;
+		this.contigIds[site] = tid;
+		this.positions[site] = pos;
+		appendText(3 * site + 1, id);
+		appendText(3 * site + 2, ref);
+		appendText(3 * site + 3, alt);
+		return site;
+		}
+
+	/** append a string to the pool, a null string is stored as an empty one */
+	private void appendText(int offsetIndex,final String str) {
+		final byte[] bytes = (str==null ? new byte[0] : str.getBytes(StandardCharsets.UTF_8));
+		if(this.textLength + bytes.length > this.textPool.length) {
+			this.textPool = Arrays.copyOf(this.textPool, Math.max(this.textLength + bytes.length, Math.max(256, this.textPool.length*2)));
+			}
+		System.arraycopy(bytes, 0, this.textPool, this.textLength, bytes.length);
+		this.textLength += bytes.length;
+		this.textOffsets[offsetIndex] = this.textLength;
+		}
+
+	/** decode the field 'f' (0:ID, 1:REF, 2:ALT) of a site, or null if it is empty */
+	private String getText(int site,int f) {
+		checkSite(site);
+		final int start = this.textOffsets[3 * site + f];
+		final int end = this.textOffsets[3 * site + f + 1];
+		return start==end ? null : new String(this.textPool, start, end - start, StandardCharsets.UTF_8);
+		}
+
+	private void setCall(int site,int sample,int call) {
+		final int word = site * this.wordsPerSite + sample / CALLS_PER_WORD;
+		final int shift = (sample % CALLS_PER_WORD) * 2;
+		this.calls[word] = (this.calls[word] & ~(3L << shift)) | (((long)call) << shift);
+		}
+
+	private void checkSite(int site) {
+		if(site<0 || site>=this.siteCount) throw new IndexOutOfBoundsException("site "+site+" out of "+this.siteCount);
+		}
+
+	/** selected samples, in the order of the columns */
+	public List<String> getSamples() {
+		return this.samples;
+		}
+	public int getSampleCount() {
+		return this.samples.size();
+		}
+	public int getSiteCount() {
+		return this.siteCount;
+		}
+	public boolean isEmpty() {
+		return this.siteCount==0;
+		}
+	public String getContig(int site) {
+		checkSite(site);
+		return this.contigs.get(this.contigIds[site]);
+		}
+	public int getPosition(int site) {
+		checkSite(site);
+		return this.positions[site];
+		}
+	/** variant ID or null */
+	public String getId(int site) {
+		return getText(site, 0);
+		}
+	public String getReference(int site) {
+		return getText(site, 1);
+		}
+	/** alternate alleles, comma separated */
+	public String getAlternate(int site) {
+		return getText(site, 2);
+		}
+
+	/** get the call (HOM_REF, HET, HOM_VAR or NO_CALL) of the sample at the given index */
+	public int getCall(int site,int sample) {
+		checkSite(site);
+		if(sample<0 || sample>=this.samples.size()) throw new IndexOutOfBoundsException("sample "+sample+" out of "+this.samples.size());
+		final int word = site * this.wordsPerSite + sample / CALLS_PER_WORD;
+		final int shift = (sample % CALLS_PER_WORD) * 2;
+		return (int)((this.calls[word] >>> shift) & 3L);
+		}
+
+	/** get the call (HOM_REF, HET, HOM_VAR or NO_CALL) of the sample with the given name */
+	public int getCall(int site,final String sample) {
+		final int idx = this.samples.indexOf(sample);
+		if(idx==-1) throw new IllegalArgumentException("sample "+sample+" is not in the matrix");
+		return getCall(site, idx);
+		}
+
+	/** count the calls of a sample, indexed by HOM_REF, HET, HOM_VAR, NO_CALL */
+	public int[] countCalls(int sample) {
+		final int[] counts = new int[4];
+		for(int site=0;site< this.siteCount;site++) {
+			counts[getCall(site,sample)]++;
+			}
+		return counts;
+		}
+
+	/** fraction of NO_CALL for a sample */
+	public double getMissingRate(int sample) {
+		if(this.siteCount==0) return 0.0;
+		return countCalls(sample)[NO_CALL]/(double)this.siteCount;
+		}
+
+	/** number of bytes allocated by the arrays of the matrix: calls, contig indexes, positions and the ID/REF/ALT pool */
+	public long getByteSize() {
+		return (long)this.calls.length * Long.BYTES
+			+ ((long)this.contigIds.length + this.positions.length + this.textOffsets.length) * Integer.BYTES
+			+ this.textPool.length;
+		}
+
+	@Override
+	public String toString() {
+		return "HtsjdkGenotypeMatrix(samples:"+this.samples.size()+",sites:"+this.siteCount+")";
+		}
+
+	/** convert a htsjdk genotype to a call */
+	private static int toCall(final Genotype g) {
+		switch(g.getType()) {
+			case HOM_REF: return HOM_REF;
+			case HET: return HET;
+			case HOM_VAR: return HOM_VAR;
+			default: return NO_CALL;
+			}
+		}
+
+	/** parse the GT field line[start,end) without creating any object */
+	private static int parseCall(final String line,int start,int end) {
+		if(start>=end) return NO_CALL;
+		int first = -1;
+		boolean same = true;
+		int i = start;
+		while(i< end) {
+			if(line.charAt(i)=='.') return NO_CALL;
+			int allele = 0;
+			int n = 0;
+			while(i< end) {
+				final char c = line.charAt(i);
+				if(c<'0' || c>'9') break;
+				allele = allele*10 + (c-'0');
+				n++;
+				i++;
+				}
+			if(n==0) throw new IllegalArgumentException("bad genotype "+line.substring(start, end));
+			if(first==-1) {
+				first = allele;
+				}
+			else if(first!=allele) {
+				same=false;
+				}
+			if(i< end) {
+				final char c = line.charAt(i);
+				if(c!='/' && c!='|') throw new IllegalArgumentException("bad genotype "+line.substring(start, end));
+				i++;
+				}
+			}
+		if(!same) return HET;
+		return first==0?HOM_REF:HOM_VAR;
+		}
+
+	/**
+	 * parse regions like 'chr1', 'chr1:100' or 'chr1:100-200'. Overlapping regions are merged
+	 * so a site is never reported twice by the tabix queries.
+	 */
+	static List<Interval> parseRegions(final Collection<String> strings) {
+		final Map<String,List<Interval>> contig2regions = new LinkedHashMap<>();
+		for(String str: strings) {
+			final String s = str.trim().replace(",", "");
+			final int colon = s.lastIndexOf(':');
+			final Interval r;
+			try {
+				if(colon==-1) {
+					r = new Interval(s, 1, Integer.MAX_VALUE);
+					}
+				else
+					{
+					final String contig = s.substring(0, colon);
+					final int hyphen = s.indexOf('-', colon+1);
+					final int start = Integer.parseInt(hyphen==-1?s.substring(colon+1):s.substring(colon+1, hyphen));
+					final int end = hyphen==-1?start:Integer.parseInt(s.substring(hyphen+1));
+					r = new Interval(contig, start, end);
+					}
+				}
+			catch(final NumberFormatException err) {
+				throw new IllegalArgumentException("bad region \""+str+"\"", err);
+				}
+			if(StringUtil.isBlank(r.getContig()) || r.getStart()<1 || r.getEnd() < r.getStart()) throw new IllegalArgumentException("bad region \""+str+"\"");
+			contig2regions.computeIfAbsent(r.getContig(), K->new ArrayList<>()).add(r);
+			}
+		final List<Interval> regions = new ArrayList<>();
+		for(List<Interval> L: contig2regions.values()) {
+			L.sort((A,B)->Integer.compare(A.getStart(), B.getStart()));
+			Interval prev = null;
+			for(Interval r: L) {
+				if(prev!=null && r.getStart() <= prev.getEnd()) {
+					prev = new Interval(prev.getContig(), prev.getStart(), Math.max(prev.getEnd(), r.getEnd()));
+					regions.set(regions.size()-1, prev);
+					}
+				else
+					{
+					prev = r;
+					regions.add(r);
+					}
+				}
+			}
+		return regions;
+		}
+
+	/**
+	 * region filter used when the whole file is scanned: the merged regions of each contig are kept as
+	 * sorted arrays of starts and ends, searched by binary search. No region accepts everything.
+	 */
+	private static class RegionFilter {
+		private final boolean acceptAll;
+		private final Map<String,int[]> contig2starts = new HashMap<>();
+		private final Map<String,int[]> contig2ends = new HashMap<>();
+		/** @param regions the output of parseRegions: merged and sorted on each contig */
+		RegionFilter(final List<Interval> regions) {
+			this.acceptAll = regions.isEmpty();
+			final Map<String,List<Interval>> contig2regions = regions.stream().collect(Collectors.groupingBy(Interval::getContig));
+			for(Map.Entry<String,List<Interval>> kv: contig2regions.entrySet()) {
+				this.contig2starts.put(kv.getKey(), kv.getValue().stream().mapToInt(Interval::getStart).toArray());
+				this.contig2ends.put(kv.getKey(), kv.getValue().stream().mapToInt(Interval::getEnd).toArray());
+				}
+			}
+		boolean accept(final String contig,int pos) {
+			if(this.acceptAll) return true;
+			final int[] starts = this.contig2starts.get(contig);
+			if(starts==null) return false;
+			int i = Arrays.binarySearch(starts, pos);
+			if(i>=0) return true;
+			/* last region starting before pos */
+			i = -i - 2;
+			return i>=0 && pos <= this.contig2ends.get(contig)[i];
+			}
+		}
+
+	/** POS of a VCF line whose first tab is at 'tab', or -1 if there is no POS column */
+	private static int parsePos(final String line,int tab) {
+		final int tab2 = line.indexOf('\t', tab+1);
+		return tab2==-1 ? -1 : Integer.parseInt(line.substring(tab+1, tab2));
+		}
+
+	/** source of the sites */
+	private static interface SiteReader extends Closeable {
+		/** read the next site into 'matrix', returns false at the end of the input */
+		boolean readNext(HtsjdkGenotypeMatrix matrix) throws IOException;
+		}
+
+	/** read the VCF text lines and parse the GT fields directly, no VariantContext/Genotype is created */
+	private static class VcfTextSiteReader implements SiteReader {
+		/** filter of the full scan, null when the lines come from the index queries */
+		private final RegionFilter filter;
+		/** for each sample column of the VCF, the index in the matrix or -1 */
+		private final int[] column2sample;
+		/** the text lines, either the whole file or the tabix queries */
+		private final Iterator<String> lines;
+		private final Closeable closeable;
+
+		VcfTextSiteReader(final HtsjdkUtils.HtsSource source,final int[] column2sample,final List<Interval> regions) throws IOException {
+			this.column2sample = column2sample;
+			final boolean indexed = !regions.isEmpty() && source.hasSuffix(".gz");
+			final TabixReader tabix = (indexed ? openTabixReader(source) : null);
+			final Path csiPath = (indexed && tabix==null ? HtsjdkCsiIndex.find(source) : null);
+			if(tabix!=null) {
+				this.closeable = tabix;
+				this.filter = null;
+				this.lines = new Iterator<String>() {
+					private int regionIndex = 0;
+					/** region being queried */
+					private Interval region = null;
+					private TabixReader.Iterator iter = null;
+					private String next = null;
+					@Override
+					public boolean hasNext() {
+						try {
+							while(this.next==null) {
+								if(this.iter!=null) {
+									final String line = this.iter.next();
+									if(line!=null) {
+										/* tabix returns the records overlapping the region, e.g. a deletion starting in a previous region: keep only the POS in this region */
+										final int pos = parsePos(line, line.indexOf('\t'));
+										if(pos >= this.region.getStart() && pos <= this.region.getEnd()) this.next = line;
+										continue;
+										}
+									}
+								if(this.regionIndex>=regions.size()) return false;
+								this.region = regions.get(this.regionIndex++);
+								this.iter = tabix.query(this.region.getContig()+":"+this.region.getStart()+"-"+this.region.getEnd());
+								}
+							return true;
+							}
+						catch(final IOException err) {
+							throw new UncheckedIOException(err);
+							}
+						}
+					@Override
+					public String next() {
+						if(!hasNext()) throw new NoSuchElementException();
+						final String s = this.next;
+						this.next = null;
+						return s;
+						}
+					};
+				}
+			else if(csiPath!=null) {
+				final HtsjdkCsiIndex csi = new HtsjdkCsiIndex(csiPath);
+				final BlockCompressedInputStream bgzf = new BlockCompressedInputStream(new SeekablePathStream(source.asPath()));
+				this.closeable = bgzf;
+				this.filter = null;
+				this.lines = new Iterator<String>() {
+					private int regionIndex = 0;
+					/** region being read or null */
+					private Interval region = null;
+					private String next = null;
+					@Override
+					public boolean hasNext() {
+						try {
+							while(this.next==null) {
+								if(this.region==null) {
+									if(this.regionIndex>=regions.size()) return false;
+									final Interval r = regions.get(this.regionIndex++);
+									final long offset = csi.getStartOffset(csi.getSequenceNames().indexOf(r.getContig()), r.getStart(), r.getEnd());
+									if(offset==-1L) continue;
+									bgzf.seek(offset);
+									this.region = r;
+									}
+								final String line = bgzf.readLine();
+								final int tab = (line==null ? -1 : line.indexOf('\t'));
+								/* the records are sorted: stop at the end of the file, at the next contig or after the end of the region */
+								if(tab==-1 || tab!=this.region.getContig().length() || !line.startsWith(this.region.getContig())) {
+									this.region = null;
+									continue;
+									}
+								final int pos = parsePos(line, tab);
+								if(pos==-1 || pos > this.region.getEnd()) {
+									this.region = null;
+									continue;
+									}
+								/* the index offset may be before the region, e.g. in a previous region of the same contig */
+								if(pos < this.region.getStart()) continue;
+								this.next = line;
+								}
+							return true;
+							}
+						catch(final IOException err) {
+							throw new UncheckedIOException(err);
+							}
+						}
+					@Override
+					public String next() {
+						if(!hasNext()) throw new NoSuchElementException();
+						final String s = this.next;
+						this.next = null;
+						return s;
+						}
+					};
+				}
+			else
+				{
+				final BufferedReader br = source.openBufferedReader();
+				this.closeable = br;
+				this.filter = new RegionFilter(regions);
+				this.lines = br.lines().filter(L->!L.startsWith("#")).iterator();
+				}
+			}
+
+		@Override
+		public boolean readNext(final HtsjdkGenotypeMatrix matrix) throws IOException {
+			while(this.lines.hasNext()) {
+				final String line = this.lines.next();
+				if(StringUtil.isBlank(line) || line.startsWith("#")) continue;
+				/* boundaries of the first 9 columns */
+				final int[] tabs = new int[9];
+				int prev = -1;
+				for(int i=0;i< tabs.length;i++) {
+					final int t = line.indexOf('\t', prev+1);
+					if(t==-1) {
+						if(i < 7) throw new IOException("not enough columns in VCF line "+line);
+						tabs[i] = line.length();
+						Arrays.fill(tabs, i+1, tabs.length, line.length());
+						break;
+						}
+					tabs[i] = t;
+					prev = t;
+					}
+				final String contig = line.substring(0, tabs[0]);
+				final int pos = Integer.parseInt(line.substring(tabs[0]+1, tabs[1]));
+				if(this.filter!=null && !this.filter.accept(contig, pos)) continue;
+				final String id = line.substring(tabs[1]+1, tabs[2]);
+				final int site = matrix.addSite(
+					contig,
+					pos,
+					id.equals(".")?null:id,
+					line.substring(tabs[2]+1, tabs[3]),
+					line.substring(tabs[3]+1, tabs[4])
+					);
+				/* index of GT in the FORMAT column */
+				int gtIndex = -1;
+				if(tabs[7] < line.length()) {
+					int k = 0;
+					int s = tabs[7]+1;
+					while(s <= tabs[8]) {
+						int e = line.indexOf(':', s);
+						if(e==-1 || e > tabs[8]) e = tabs[8];
+						if(e-s==2 && line.charAt(s)=='G' && line.charAt(s+1)=='T') {
+							gtIndex = k;
+							break;
+							}
+						k++;
+						s = e+1;
+						}
+					}
+				/* scan the sample columns */
+				int start = tabs[8]+1;
+				for(int col=0; col< this.column2sample.length; col++) {
+					int end = line.indexOf('\t', start);
+					if(end==-1) end = line.length();
+					final int sample = this.column2sample[col];
+					if(sample!=-1) {
+						int call = NO_CALL;
+						if(gtIndex!=-1 && start < end) {
+							/* find the GT sub-field */
+							int s = start;
+							for(int k=0;k< gtIndex && s!=-1;k++) {
+								s = line.indexOf(':', s);
+								s = (s==-1 || s >= end ? -1 : s+1);
+								}
+							if(s!=-1) {
+								int e = line.indexOf(':', s);
+								if(e==-1 || e > end) e = end;
+								call = parseCall(line, s, e);
+								}
+							}
+						matrix.setCall(site, sample, call);
+						}
+					start = end+1;
+					}
+				return true;
+				}
+			return false;
+			}
+
+		@Override
+		public void close() throws IOException {
+			this.closeable.close();
+			}
+		}
+
+	/** open the tabix index of a bgzipped VCF or returns null if there is none */
+	private static TabixReader openTabixReader(final HtsjdkUtils.HtsSource source) throws IOException {
+		if(source.isLocal()) {
+			final Path tbi = Paths.get(source.asPath().toString() + FileExtensions.TABIX_INDEX);
+			return Files.exists(tbi) ? new TabixReader(source.getPath()) : null;
+			}
+		try {
+			return new TabixReader(source.getPath());
+			}
+		catch(final IOException|RuntimeException err) {
+			/* a remote file without a tabix index is scanned */
+			return null;
+			}
+		}
+
+	/**
+	 * read the BCF sites with htsjdk. The genotypes are left undecoded by htsjdk (LazyGenotypesContext):
+	 * the GT vector is read from the raw BCF bytes and no Genotype is created.
+	 */
+	private static class VariantSiteReader implements SiteReader {
+		/** filter of the full scan, null when the variants come from the index queries */
+		private final RegionFilter filter;
+		private final int[] column2sample;
+		/** index of 'GT' in the BCF dictionary of strings or -1 */
+		private final int gtKey;
+		/** cursor in the raw genotype bytes */
+		private int offset = 0;
+		/** the variants, either the whole file or the CSI queries */
+		private final Iterator<VariantContext> iter;
+		private final Closeable closeable;
+		VariantSiteReader(final HtsjdkUtils.HtsSource source,final int[] column2sample,final List<Interval> regions) throws IOException {
+			this.column2sample = column2sample;
+			final Path csiPath = (regions.isEmpty() ? null : HtsjdkCsiIndex.find(source));
+			if(csiPath==null) {
+				final VCFIterator vcfIterator = source.openVcfIterator();
+				this.closeable = vcfIterator;
+				this.iter = vcfIterator;
+				this.filter = new RegionFilter(regions);
+				this.gtKey = BCF2Utils.makeDictionary(vcfIterator.getHeader()).indexOf(VCFConstants.GENOTYPE_KEY);
+				return;
+				}
+			final HtsjdkCsiIndex csi = new HtsjdkCsiIndex(csiPath);
+			final BlockCompressedInputStream bgzf = new BlockCompressedInputStream(new SeekablePathStream(source.asPath()));
+			this.closeable = bgzf;
+			final BCF2Codec codec = new BCF2Codec();
+			final VCFHeader header = (VCFHeader)codec.readHeader(new PositionalBufferedStream(bgzf)).getHeaderValue();
+			/* in a BCF index, the reference ids follow the contig lines of the header */
+			final SAMSequenceDictionary dict = header.getSequenceDictionary();
+			this.filter = null;
+			this.gtKey = BCF2Utils.makeDictionary(header).indexOf(VCFConstants.GENOTYPE_KEY);
+			this.iter = new Iterator<VariantContext>() {
+				private int regionIndex = 0;
+				/** region being read or null */
+				private Interval region = null;
+				private PositionalBufferedStream in = null;
+				private VariantContext next = null;
+				@Override
+				public boolean hasNext() {
+					try {
+						while(this.next==null) {
+							if(this.region==null) {
+								if(this.regionIndex>=regions.size()) return false;
+								final Interval r = regions.get(this.regionIndex++);
+								final long offset = csi.getStartOffset(dict==null ? -1 : dict.getSequenceIndex(r.getContig()), r.getStart(), r.getEnd());
+								if(offset==-1L) continue;
+								bgzf.seek(offset);
+								this.in = new PositionalBufferedStream(bgzf);
+								this.region = r;
+								}
+							final VariantContext ctx = (this.in.isDone() ? null : codec.decode(this.in));
+							/* the records are sorted: stop at the end of the file, at the next contig or after the end of the region */
+							if(ctx==null || !ctx.getContig().equals(this.region.getContig()) || ctx.getStart() > this.region.getEnd()) {
+								this.region = null;
+								continue;
+								}
+							/* the index offset may be before the region, e.g. in a previous region of the same contig */
+							if(ctx.getStart() < this.region.getStart()) continue;
+							this.next = ctx;
+							}
+						return true;
+						}
+					catch(final IOException err) {
+						throw new UncheckedIOException(err);
+						}
+					}
+				@Override
+				public VariantContext next() {
+					if(!hasNext()) throw new NoSuchElementException();
+					final VariantContext ctx = this.next;
+					this.next = null;
+					return ctx;
+					}
+				};
+			}
+		@Override
+		public boolean readNext(final HtsjdkGenotypeMatrix matrix) throws IOException {
+			while(this.iter.hasNext()) {
+				final VariantContext ctx = this.iter.next();
+				if(this.filter!=null && !this.filter.accept(ctx.getContig(), ctx.getStart())) continue;
+				final int site = matrix.addSite(
+					ctx.getContig(),
+					ctx.getStart(),
+					ctx.hasID()?ctx.getID():null,
+					ctx.getReference().getDisplayString(),
+					ctx.getAlternateAlleles().isEmpty()?".":ctx.getAlternateAlleles().stream().map(Allele::getDisplayString).collect(Collectors.joining(","))
+					);
+				final GenotypesContext genotypes = ctx.getGenotypes();
+				final Object unparsed = (genotypes instanceof LazyGenotypesContext ? LazyGenotypesContext.class.cast(genotypes).getUnparsedGenotypeData() : null);
+				if(unparsed instanceof BCF2Codec.LazyData && decodeCalls(BCF2Codec.LazyData.class.cast(unparsed), matrix, site)) {
+					return true;
+					}
+				/* the genotypes were already decoded or GT is not the first FORMAT field */
+				for(int col=0; col< this.column2sample.length; col++) {
+					final int sample = this.column2sample[col];
+					if(sample==-1) continue;
+					matrix.setCall(site, sample, ctx.hasGenotypes()?toCall(ctx.getGenotype(col)):NO_CALL);
+					}
+				return true;
+				}
+			return false;
+			}
+
+		/**
+		 * read the calls from the raw BCF genotype block: for each FORMAT field, a typed key, a type descriptor
+		 * and the values of all the samples. GT comes first. Returns false if the first field is not GT.
+		 */
+		private boolean decodeCalls(final BCF2Codec.LazyData data,final HtsjdkGenotypeMatrix matrix,int site) {
+			final byte[] bytes = data.bytes;
+			if(data.nGenotypeFields==0 || this.gtKey==-1) return false;
+			this.offset = 0;
+			final int keyType = bytes[this.offset++] & 0x0F;
+			if(readValue(bytes, keyType)!=this.gtKey) return false;
+			final int descriptor = bytes[this.offset++] & 0xFF;
+			final int type = descriptor & 0x0F;
+			int size = descriptor >>> 4;
+			if(size==15) size = readValue(bytes, bytes[this.offset++] & 0x0F);
+			if(type!=BCF_INT8 && type!=BCF_INT16 && type!=BCF_INT32) return false;
+			for(int col=0; col< this.column2sample.length; col++) {
+				int first = -1;
+				boolean same = true;
+				boolean missing = false;
+				int n = 0;
+				for(int k=0;k< size;k++) {
+					final int v = readValue(bytes, type);
+					if(isEndOfVector(v, type)) continue;
+					n++;
+					/* the allele is (v>>1)-1, 0 being a missing allele */
+					if(isMissing(v, type) || (v>>1)==0) {
+						missing = true;
+						continue;
+						}
+					final int allele = (v>>1)-1;
+					if(first==-1) {
+						first = allele;
+						}
+					else if(first!=allele) {
+						same = false;
+						}
+					}
+				final int sample = this.column2sample[col];
+				if(sample==-1) continue;
+				matrix.setCall(site, sample, missing || n==0 ? NO_CALL : !same ? HET : first==0 ? HOM_REF : HOM_VAR);
+				}
+			return true;
+			}
+
+		/** read a little-endian signed integer of the given BCF type */
+		private int readValue(final byte[] bytes,int type) {
+			final int v;
+			switch(type) {
+				case BCF_INT8: v = bytes[this.offset]; break;
+				case BCF_INT16: v = (short)((bytes[this.offset] & 0xFF) | (bytes[this.offset+1] << 8)); break;
+				case BCF_INT32: v = (bytes[this.offset] & 0xFF) | ((bytes[this.offset+1] & 0xFF) << 8) | ((bytes[this.offset+2] & 0xFF) << 16) | (bytes[this.offset+3] << 24); break;
+				default: throw new IllegalStateException("unexpected BCF integer type "+type);
+				}
+			this.offset += (type==BCF_INT8 ? 1 : type==BCF_INT16 ? 2 : 4);
+			return v;
+			}
+
+		private static boolean isMissing(int v,int type) {
+			return v == (type==BCF_INT8 ? Byte.MIN_VALUE : type==BCF_INT16 ? Short.MIN_VALUE : Integer.MIN_VALUE);
+			}
+
+		private static boolean isEndOfVector(int v,int type) {
+			return v == (type==BCF_INT8 ? Byte.MIN_VALUE+1 : type==BCF_INT16 ? Short.MIN_VALUE+1 : Integer.MIN_VALUE+1);
+			}
+		@Override
+		public void close() throws IOException {
+			this.closeable.close();
+			}
+		}
+
+	/**
+	 * Read a VCF/BCF as a sequence of matrices of at most 'chunkSize' sites.
+	 * The underlying file is closed when the last chunk has been read or when close() is called.
+	 * See {@link Chunks} for a collection that does not keep a file open.
+	 */
+	public static class Reader implements Iterator<HtsjdkGenotypeMatrix>, Closeable {
+		private final List<String> samples;
+		private final int chunkSize;
+		private final SiteReader siteReader;
+		private final List<String> contigs = new ArrayList<>();
+		private final Map<String,Integer> contig2id = new HashMap<>();
+		private HtsjdkGenotypeMatrix next = null;
+		private boolean closed = false;
+
+		/**
+		 * @param source the VCF or BCF
+		 * @param samples the samples to keep, or null for all the samples of the VCF
+		 * @param regions the sites must be in one of those regions, or empty for all the sites
+		 * @param chunkSize maximum number of sites per matrix
+		 */
+		Reader(final HtsjdkUtils.HtsSource source,final Collection<String> samples,final List<Interval> regions,int chunkSize) throws IOException {
+			if(chunkSize<=0) throw new IllegalArgumentException("chunkSize should be greater than 0 but got "+chunkSize);
+			final VCFHeader header = source.extractVcfHeader();
+			final List<String> vcfSamples = header.getGenotypeSamples();
+			this.samples = samples==null?new ArrayList<>(vcfSamples):new ArrayList<>(samples);
+			final int[] column2sample = new int[vcfSamples.size()];
+			Arrays.fill(column2sample, -1);
+			for(int i=0;i< this.samples.size();i++) {
+				final int col = vcfSamples.indexOf(this.samples.get(i));
+				if(col==-1) throw new IllegalArgumentException("sample \""+this.samples.get(i)+"\" is not in "+source.getPath());
+				if(column2sample[col]!=-1) throw new IllegalArgumentException("duplicate sample \""+this.samples.get(i)+"\"");
+				column2sample[col]=i;
+				}
+			this.chunkSize = chunkSize;
+			this.siteReader = source.hasSuffix(FileExtensions.BCF)
+				? new VariantSiteReader(source, column2sample, regions)
+				: new VcfTextSiteReader(source, column2sample, regions)
+				;
+			}
+
+		@Override
+		public boolean hasNext() {
+			if(this.next!=null) return true;
+			if(this.closed) return false;
+			try {
+				final HtsjdkGenotypeMatrix matrix = new HtsjdkGenotypeMatrix(this.samples, this.contigs, this.contig2id);
+				while(matrix.getSiteCount() < this.chunkSize && this.siteReader.readNext(matrix)) {
+					/* continue */
+					}
+				if(matrix.getSiteCount() < this.chunkSize) close();
+				if(matrix.isEmpty()) return false;
+				this.next = matrix;
+				return true;
+				}
+			catch(final IOException err) {
+				throw new UncheckedIOException(err);
+				}
+			}
+
+		/** read all the remaining sites into one matrix and close the reader */
+		public HtsjdkGenotypeMatrix readAll() throws IOException {
+			try {
+				final HtsjdkGenotypeMatrix matrix = new HtsjdkGenotypeMatrix(this.samples, this.contigs, this.contig2id);
+				if(this.next!=null) throw new IllegalStateException("readAll() cannot be called after hasNext()");
+				if(!this.closed) {
+					while(this.siteReader.readNext(matrix)) {
+						/* continue */
+						}
+					}
+				return matrix;
+				}
+			finally {
+				close();
+				}
+			}
+
+		@Override
+		public HtsjdkGenotypeMatrix next() {
+			if(!hasNext()) throw new NoSuchElementException();
+			final HtsjdkGenotypeMatrix m = this.next;
+			this.next = null;
+			return m;
+			}
+
+		@Override
+		public void close() throws IOException {
+			if(this.closed) return;
+			this.closed = true;
+			this.siteReader.close();
+			}
+		}
+
+	/**
+	 * The matrices of at most 'chunkSize' sites of a VCF/BCF, as a collection that can be returned to a channel operator (e.g. flatMap).
+	 * No file is kept open: each call to iterator() opens a new Reader that is closed once it has been drained.
+	 * size() reads the whole file.
+	 */
+	public static class Chunks extends AbstractCollection<HtsjdkGenotypeMatrix> {
+		private final HtsjdkUtils.HtsSource source;
+		private final Collection<String> samples;
+		private final List<Interval> regions;
+		private final int chunkSize;
+
+		Chunks(final HtsjdkUtils.HtsSource source,final Collection<String> samples,final List<Interval> regions,int chunkSize) throws IOException {
+			this.source = source;
+			this.samples = samples;
+			this.regions = regions;
+			this.chunkSize = chunkSize;
+			/* validate the samples and the chunk size now rather than in the consumer */
+			new Reader(source, samples, regions, chunkSize).close();
+			}
+
+		@Override
+		public Iterator<HtsjdkGenotypeMatrix> iterator() {
+			try {
+				return new Reader(this.source, this.samples, this.regions, this.chunkSize);
+				}
+			catch(final IOException err) {
+				throw new UncheckedIOException(err);
+				}
+			}
+
+		@Override
+		public int size() {
+			int n = 0;
+			final Iterator<HtsjdkGenotypeMatrix> iter = iterator();
+			while(iter.hasNext()) {
+				iter.next();
+				n++;
+				}
+			return n;
+			}
+
+		@Override
+		public String toString() {
+			return "HtsjdkGenotypeMatrix.Chunks(chunkSize:"+this.chunkSize+")";
+			}
+		}
+	}
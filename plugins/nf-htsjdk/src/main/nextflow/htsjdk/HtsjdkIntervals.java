@@ -0,0 +1,423 @@
+/*
+The MIT License (MIT)
+
+Copyright (c) 2024 Pierre Lindenbaum
+
+Permission is hereby granted, free of charge, to any person obtaining a copy
+of this software and associated documentation files (the "Software"), to deal
+in the Software without restriction, including without limitation the rights
+to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+copies of the Software, and to permit persons to whom the Software is
+furnished to do so, subject to the following conditions:
+
+The above copyright notice and this permission notice shall be included in all
+copies or substantial portions of the Software.
+
+THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+SOFTWARE.
+
+*/
+package nextflow.htsjdk;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Comparator;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.function.Consumer;
+import java.util.regex.Pattern;
+
+import htsjdk.samtools.SAMException;
+import htsjdk.samtools.SAMFileHeader;
+import htsjdk.samtools.SAMSequenceDictionary;
+import htsjdk.samtools.SAMSequenceRecord;
+import htsjdk.samtools.SAMTextHeaderCodec;
+import htsjdk.samtools.util.BlockCompressedOutputStream;
+import htsjdk.samtools.util.CloseableIterator;
+import htsjdk.samtools.util.IOUtil;
+import htsjdk.samtools.util.Interval;
+import htsjdk.samtools.util.PeekableIterator;
+import htsjdk.samtools.util.RuntimeIOException;
+import htsjdk.samtools.util.SortingCollection;
+import htsjdk.samtools.util.StringUtil;
+
+/**
+ * Streaming operations (sort, merge, intersect, subtract, pad) on interval_list and BED files.
+ *
+ * Intervals are never loaded all at once: they are pushed into a htsjdk SortingCollection that
+ * spills sorted runs to temporary files once 'maxRecordsInRam' is reached and merges them back.
+ * The other operations are sweeps over two sorted streams, so the peak memory does not depend
+ * on the size of the inputs.
+ */
+public class HtsjdkIntervals {
+	private static final Pattern TAB = Pattern.compile("\t");
+	/** same default as picard's MAX_RECORDS_IN_RAM */
+	static final int DEFAULT_MAX_RECORDS_IN_RAM = 500_000;
+
+	public static enum Format {
+		INTERVAL_LIST(".interval_list"),
+		BED(".bed");
+		private final String suffix;
+		Format(final String suffix) {
+			this.suffix = suffix;
+			}
+		public String getSuffix() {
+			return suffix;
+			}
+		/** guess format from the filename, default is interval_list */
+		static Format of(final String filename) {
+			if(filename.endsWith(".bed") || filename.endsWith(".bed.gz")) return BED;
+			return INTERVAL_LIST;
+			}
+		}
+
+	private final SAMSequenceDictionary dict;
+	private final int maxRecordsInRam;
+	private final Path tmpDir;
+
+	HtsjdkIntervals(final SAMSequenceDictionary dict,int maxRecordsInRam,final Path tmpDir) {
+		if(dict==null || dict.isEmpty()) throw new IllegalArgumentException("a non-empty dictionary is required");
+		if(maxRecordsInRam<=0) throw new IllegalArgumentException("maxRecordsInRam should be greater than 0 but got "+maxRecordsInRam);
+		this.dict = dict;
+		this.maxRecordsInRam = maxRecordsInRam;
+		this.tmpDir = tmpDir==null?IOUtil.getDefaultTmpDirPath():tmpDir;
+		}
+
+	public SAMSequenceDictionary getDictionary() {
+		return dict;
+		}
+
+	private int tid(final Interval i) {
+		return this.dict.getSequenceIndex(i.getContig());
+		}
+
+	private int compare(final Interval a,final Interval b) {
+		int i = Integer.compare(tid(a), tid(b));
+		if(i!=0) return i;
+		i = Integer.compare(a.getStart(), b.getStart());
+		if(i!=0) return i;
+		return Integer.compare(a.getEnd(), b.getEnd());
+		}
+
+	/** binary codec used by the SortingCollection to spill the intervals to disk */
+	private static class IntervalCodec implements SortingCollection.Codec<Interval> {
+		private final SAMSequenceDictionary dict;
+		private DataOutputStream out;
+		private DataInputStream in;
+		IntervalCodec(final SAMSequenceDictionary dict) {
+			this.dict = dict;
+			}
+		@Override
+		public void setOutputStream(final OutputStream os) {
+			this.out = new DataOutputStream(os);
+			}
+		@Override
+		public void setInputStream(final InputStream is) {
+			this.in = new DataInputStream(is);
+			}
+		@Override
+		public void encode(final Interval interval) {
+			try {
+				this.out.writeInt(this.dict.getSequenceIndex(interval.getContig()));
+				this.out.writeInt(interval.getStart());
+				this.out.writeInt(interval.getEnd());
+				this.out.writeBoolean(interval.isNegativeStrand());
+				final String name = interval.getName();
+				this.out.writeBoolean(name!=null);
+				if(name!=null) this.out.writeUTF(name);
+				}
+			catch(final IOException err) {
+				throw new RuntimeIOException(err);
+				}
+			}
+		@Override
+		public Interval decode() {
+			try {
+				final int tid;
+				try {
+					tid = this.in.readInt();
+					}
+				catch(final EOFException err) {
+					return null;
+					}
+				final int start = this.in.readInt();
+				final int end = this.in.readInt();
+				final boolean negative = this.in.readBoolean();
+				final String name = this.in.readBoolean()?this.in.readUTF():null;
+				return new Interval(this.dict.getSequence(tid).getSequenceName(), start, end, negative, name);
+				}
+			catch(final IOException err) {
+				throw new RuntimeIOException(err);
+				}
+			}
+		@Override
+		public IntervalCodec clone() {
+			return new IntervalCodec(this.dict);
+			}
+		}
+
+	/** read the intervals of an interval_list or a BED file, validate them against the dictionary, pad them and send them to 'consumer' */
+	private void readIntervals(final HtsjdkUtils.HtsSource source,int padding,final Consumer<Interval> consumer) throws IOException {
+		if(!(source.isIntervalList() || source.isBed())) {
+			throw new SAMException("not a valid extension for interval_list or BED "+source.getPath());
+			}
+		final boolean bed = source.isBed();
+		try(BufferedReader br = source.openBufferedReader()) {
+			String line;
+			int nLine=0;
+			while((line=br.readLine())!=null) {
+				nLine++;
+				if(StringUtil.isBlank(line)) continue;
+				if(bed) {
+					if(line.startsWith("#") || line.startsWith("track") || line.startsWith("browser")) continue;
+					}
+				else if(line.startsWith("@")) {
+					continue;
+					}
+				final String[] tokens = TAB.split(line);
+				if(tokens.length<3) throw new IOException("expected at least 3 columns in "+source.getPath()+" line "+nLine+": "+line);
+				final SAMSequenceRecord ssr = this.dict.getSequence(tokens[0]);
+				if(ssr==null) throw new SAMException("contig \""+tokens[0]+"\" from "+source.getPath()+" line "+nLine+" is not in the dictionary");
+				int start;
+				int end;
+				boolean negative = false;
+				String name = null;
+				try {
+					start = Integer.parseInt(tokens[1]) + (bed?1:0);
+					end = Integer.parseInt(tokens[2]);
+					}
+				catch(final NumberFormatException err) {
+					throw new IOException("bad start/end in "+source.getPath()+" line "+nLine+": "+line,err);
+					}
+				if(bed) {
+					if(tokens.length>3 && !tokens[3].equals(".")) name = tokens[3];
+					if(tokens.length>5) negative = tokens[5].equals("-");
+					}
+				else
+					{
+					if(tokens.length>3) negative = tokens[3].equals("-");
+					if(tokens.length>4 && !tokens[4].equals(".")) name = tokens[4];
+					}
+				if(start<1 || end < start-1 || end > ssr.getSequenceLength()) {
+					throw new SAMException("interval "+tokens[0]+":"+start+"-"+end+" from "+source.getPath()+" line "+nLine+" is out of the bounds of the dictionary (1-"+ssr.getSequenceLength()+")");
+					}
+				if(padding!=0) {
+					start = Math.max(1, start - padding);
+					end = Math.min(ssr.getSequenceLength(), end + padding);
+					if(end < start - 1) continue; /* negative padding ate the whole interval */
+					}
+				consumer.accept(new Interval(ssr.getSequenceName(), start, end, negative, name));
+				}
+			}
+		}
+
+	/** read, pad and sort all the intervals from 'sources'. The temporary files are deleted when the iterator is closed. */
+	CloseableIterator<Interval> sorted(final List<HtsjdkUtils.HtsSource> sources,int padding) throws IOException {
+		final SortingCollection<Interval> sorter = SortingCollection.newInstance(
+				Interval.class,
+				new IntervalCodec(this.dict),
+				(Comparator<Interval>)this::compare,
+				this.maxRecordsInRam,
+				this.tmpDir
+				);
+		try {
+			for(HtsjdkUtils.HtsSource source: sources) {
+				readIntervals(source, padding, sorter::add);
+				}
+			sorter.doneAdding();
+			}
+		catch(final IOException|RuntimeException err) {
+			sorter.cleanup();
+			throw err;
+			}
+		final CloseableIterator<Interval> delegate = sorter.iterator();
+		return new CloseableIterator<Interval>() {
+			@Override
+			public boolean hasNext() {
+				return delegate.hasNext();
+				}
+			@Override
+			public Interval next() {
+				return delegate.next();
+				}
+			@Override
+			public void close() {
+				delegate.close();
+				sorter.cleanup();
+				}
+			};
+		}
+
+	/**
+	 * merge the overlapping or the abutting intervals of a sorted iterator. The name and the strand of the first interval are kept.
+	 * Zero-length intervals (e.g. BED records with start==end) cover no base and are skipped.
+	 */
+	CloseableIterator<Interval> merged(final CloseableIterator<Interval> delegate) {
+		return new CloseableIterator<Interval>() {
+			private final PeekableIterator<Interval> iter = new PeekableIterator<>(delegate);
+			private void skipEmpty() {
+				while(iter.hasNext() && iter.peek().getEnd() < iter.peek().getStart()) {
+					iter.next();
+					}
+				}
+			@Override
+			public boolean hasNext() {
+				skipEmpty();
+				return iter.hasNext();
+				}
+			@Override
+			public Interval next() {
+				if(!hasNext()) throw new NoSuchElementException();
+				final Interval first = iter.next();
+				int end = first.getEnd();
+				for(;;) {
+					skipEmpty();
+					if(!iter.hasNext()) break;
+					final Interval next = iter.peek();
+					if(!next.getContig().equals(first.getContig()) || next.getStart() > end + 1) break;
+					end = Math.max(end, next.getEnd());
+					iter.next();
+					}
+				if(end==first.getEnd()) return first;
+				return new Interval(first.getContig(), first.getStart(), end, first.isNegativeStrand(), first.getName());
+				}
+			@Override
+			public void close() {
+				iter.close();
+				}
+			};
+		}
+
+	/** skip the intervals of 'iter' ending before the start of 'interval' */
+	private void skipBefore(final PeekableIterator<Interval> iter,final Interval interval) {
+		final int tid = tid(interval);
+		while(iter.hasNext()) {
+			final Interval b = iter.peek();
+			final int tid2 = tid(b);
+			if(tid2 > tid || (tid2==tid && b.getEnd() >= interval.getStart())) break;
+			iter.next();
+			}
+		}
+
+	/** write the parts of the merged 'a' also covered by the merged 'b' */
+	void intersect(final CloseableIterator<Interval> a, final CloseableIterator<Interval> b,final Consumer<Interval> consumer) {
+		try(PeekableIterator<Interval> iter = new PeekableIterator<>(b)) {
+			while(a.hasNext()) {
+				final Interval left = a.next();
+				skipBefore(iter, left);
+				while(iter.hasNext()) {
+					final Interval right = iter.peek();
+					if(!right.getContig().equals(left.getContig()) || right.getStart() > left.getEnd()) break;
+					consumer.accept(new Interval(left.getContig(),
+						Math.max(left.getStart(), right.getStart()),
+						Math.min(left.getEnd(), right.getEnd()),
+						left.isNegativeStrand(),
+						left.getName()
+						));
+					/* 'right' may overlap the next 'left' */
+					if(right.getEnd() > left.getEnd()) break;
+					iter.next();
+					}
+				}
+			}
+		}
+
+	/** write the parts of the merged 'a' not covered by the merged 'b' */
+	void subtract(final CloseableIterator<Interval> a, final CloseableIterator<Interval> b,final Consumer<Interval> consumer) {
+		try(PeekableIterator<Interval> iter = new PeekableIterator<>(b)) {
+			while(a.hasNext()) {
+				final Interval left = a.next();
+				skipBefore(iter, left);
+				int start = left.getStart();
+				while(iter.hasNext()) {
+					final Interval right = iter.peek();
+					if(!right.getContig().equals(left.getContig()) || right.getStart() > left.getEnd()) break;
+					if(right.getStart() > start) {
+						consumer.accept(new Interval(left.getContig(), start, right.getStart()-1, left.isNegativeStrand(), left.getName()));
+						}
+					start = Math.max(start, right.getEnd() + 1);
+					/* 'right' may overlap the next 'left' */
+					if(right.getEnd() > left.getEnd()) break;
+					iter.next();
+					}
+				if(start <= left.getEnd()) {
+					consumer.accept(new Interval(left.getContig(), start, left.getEnd(), left.isNegativeStrand(), left.getName()));
+					}
+				}
+			}
+		}
+
+	/** open a new interval_list or BED writer, the output is bgzipped if the filename ends with '.gz' */
+	IntervalWriter openWriter(final Path path,final Format format) throws IOException {
+		return new IntervalWriter(path, format);
+		}
+
+	class IntervalWriter implements Consumer<Interval>, Closeable {
+		private final Format format;
+		private final Writer w;
+		IntervalWriter(final Path path,final Format format) throws IOException {
+			this.format = format;
+			final OutputStream os = path.getFileName().toString().endsWith(".gz")
+				? new BlockCompressedOutputStream(Files.newOutputStream(path), (Path)null)
+				: Files.newOutputStream(path)
+				;
+			this.w = new BufferedWriter(new OutputStreamWriter(os));
+			if(format.equals(Format.INTERVAL_LIST)) {
+				final SAMFileHeader header = new SAMFileHeader(dict);
+				header.setSortOrder(SAMFileHeader.SortOrder.coordinate);
+				new SAMTextHeaderCodec().encode(this.w, header);
+				}
+			}
+		@Override
+		public void accept(final Interval interval) {
+			try {
+				this.w.write(interval.getContig());
+				this.w.write('\t');
+				if(this.format.equals(Format.BED)) {
+					/* name, score and strand columns, so the strand survives a round trip */
+					this.w.write(String.valueOf(interval.getStart()-1));
+					this.w.write('\t');
+					this.w.write(String.valueOf(interval.getEnd()));
+					this.w.write('\t');
+					this.w.write(interval.getName()==null?".":interval.getName());
+					this.w.write("\t0\t");
+					this.w.write(interval.isNegativeStrand()?'-':'+');
+					}
+				else
+					{
+					this.w.write(String.valueOf(interval.getStart()));
+					this.w.write('\t');
+					this.w.write(String.valueOf(interval.getEnd()));
+					this.w.write('\t');
+					this.w.write(interval.isNegativeStrand()?'-':'+');
+					this.w.write('\t');
+					this.w.write(interval.getName()==null?".":interval.getName());
+					}
+				this.w.write('\n');
+				}
+			catch(final IOException err) {
+				throw new RuntimeIOException(err);
+				}
+			}
+		@Override
+		public void close() throws IOException {
+			this.w.close();
+			}
+		}
+	}
@@ -0,0 +1,620 @@
+/*
+The MIT License (MIT)
+
+Copyright (c) 2024 Pierre Lindenbaum
+
+Permission is hereby granted, free of charge, to any person obtaining a copy
+of this software and associated documentation files (the "Software"), to deal
+in the Software without restriction, including without limitation the rights
+to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+copies of the Software, and to permit persons to whom the Software is
+furnished to do so, subject to the following conditions:
+
+The above copyright notice and this permission notice shall be included in all
+copies or substantial portions of the Software.
+
+THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+SOFTWARE.
+
+*/
+package nextflow.htsjdk;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.AbstractList;
+import java.util.AbstractSet;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import htsjdk.samtools.SAMReadGroupRecord;
+import htsjdk.samtools.SAMSequenceDictionary;
+import htsjdk.samtools.SAMSequenceRecord;
+
+/**
+ * Off-heap store for the metadata extracted from the HTS headers (dictionaries, read groups, samples).
+ *
+ * Each record is encoded with varints into direct ByteBuffers allocated by segments. Strings
+ * (contig names, md5, sample names...) are deduplicated, so a record is mostly a list of small
+ * integers, and identical records (e.g. the same dictionary read from many BAMs) are stored only once.
+ * Strings and records are found back with open-addressing hash tables of primitive longs, the candidates
+ * being compared byte per byte with the content of the segments: there is no java object per string
+ * or per record on the heap.
+ * A record starts with a table of fixed-size offsets, so the handles returned by the store decode
+ * the i-th item without decoding the previous ones. Once 'maxMemory' bytes have been allocated,
+ * the put methods roll back what they have written and return null: the caller should keep the plain java objects.
+ */
+public class HtsjdkMetadataStore {
+	private static final int SEGMENT_SIZE = 1024 * 1024;
+	private static final int NO_STRING = -1;
+	private static final int OVERFLOW = -2;
+
+	private final long maxMemory;
+	/** direct buffers, a string or a record never spans two segments */
+	private final List<ByteBuffer> segments = new ArrayList<>();
+	/** deduplicated strings, stored as varint(length) + utf-8 bytes */
+	private final BlobIndex strings = new BlobIndex();
+	/** deduplicated records, stored as varint(length) + payload */
+	private final BlobIndex records = new BlobIndex();
+	private long bytesAllocated = 0L;
+	private long bytesUsed = 0L;
+
+	HtsjdkMetadataStore(long maxMemory) {
+		if(maxMemory<=0L) throw new IllegalArgumentException("maxMemory should be greater than 0 but got "+maxMemory);
+		this.maxMemory = maxMemory;
+		}
+
+	/** an address is the segment index in the high 32 bits and the offset in the low 32 bits */
+	private static long address(int segment,int offset) {
+		return (((long)segment)<<32) | (offset & 0xFFFFFFFFL);
+		}
+
+	private static void writeVarInt(final ByteArrayOutputStream out, int v) {
+		while((v & ~0x7F)!=0) {
+			out.write((v & 0x7F) | 0x80);
+			v >>>= 7;
+			}
+		out.write(v);
+		}
+
+	private static int hash(final byte[] blob) {
+		final int h = Arrays.hashCode(blob) * 0x9E3779B9;
+		return h ^ (h>>>16);
+		}
+
+	/** copy 'bytes' into a segment, returns the address or -1 if the memory budget is exceeded */
+	private long write(final byte[] bytes) {
+		ByteBuffer last = this.segments.isEmpty()?null:this.segments.get(this.segments.size()-1);
+		if(last==null || last.remaining() < bytes.length) {
+			final int capacity = Math.max(SEGMENT_SIZE, bytes.length);
+			if(this.bytesAllocated + capacity > this.maxMemory) return -1L;
+			last = ByteBuffer.allocateDirect(capacity);
+			this.segments.add(last);
+			this.bytesAllocated += capacity;
+			}
+		final int offset = last.position();
+		last.put(bytes);
+		this.bytesUsed += bytes.length;
+		return address(this.segments.size()-1, offset);
+		}
+
+	/** true if the blob stored at 'address' has the same bytes as 'blob' */
+	private boolean blobEquals(final long address, final byte[] blob) {
+		final Decoder dec = new Decoder(address);
+		if(dec.readVarInt()!=blob.length) return false;
+		for(int i=0;i< blob.length;i++) {
+			if(dec.buffer.get(dec.offset+i)!=blob[i]) return false;
+			}
+		return true;
+		}
+
+	/** get or create the id of a blob in 'index', returns OVERFLOW if the memory budget is exceeded */
+	private int putBlob(final BlobIndex index, final byte[] blob) {
+		final int hash = hash(blob);
+		final int id = index.find(blob, hash);
+		if(id>=0) return id;
+		final ByteArrayOutputStream out = new ByteArrayOutputStream(blob.length+5);
+		writeVarInt(out, blob.length);
+		out.write(blob, 0, blob.length);
+		final long addr = write(out.toByteArray());
+		if(addr<0L) return OVERFLOW;
+		return index.add(hash, addr);
+		}
+
+	/**
+	 * open-addressing hash table (linear probing) of the blobs written in the segments.
+	 * A slot holds the hash of the blob in its high 32 bits and the blob id + 1 in its low 32 bits, 0 being an empty slot.
+	 */
+	private class BlobIndex {
+		private long[] slots = new long[1024];
+		private long[] addresses = new long[512];
+		private int[] hashes = new int[512];
+		private int count = 0;
+
+		/** returns the id of the blob or -1 */
+		int find(final byte[] blob, final int hash) {
+			final int mask = this.slots.length - 1;
+			for(int i = hash & mask; this.slots[i]!=0L; i = (i+1) & mask) {
+				final long slot = this.slots[i];
+				if((int)(slot>>>32)!=hash) continue;
+				final int id = (int)(slot & 0xFFFFFFFFL) - 1;
+				if(blobEquals(this.addresses[id], blob)) return id;
+				}
+			return -1;
+			}
+		/** register the blob written at 'address', returns its id */
+		int add(final int hash, final long address) {
+			if(this.count==this.addresses.length) {
+				this.addresses = Arrays.copyOf(this.addresses, this.count*2);
+				this.hashes = Arrays.copyOf(this.hashes, this.count*2);
+				}
+			this.addresses[this.count] = address;
+			this.hashes[this.count] = hash;
+			if((this.count+1)*2 > this.slots.length) {
+				this.slots = new long[this.slots.length*2];
+				reindex(this.count);
+				}
+			insert(this.count);
+			return this.count++;
+			}
+		private void insert(final int id) {
+			final int mask = this.slots.length - 1;
+			int i = this.hashes[id] & mask;
+			while(this.slots[i]!=0L) i = (i+1) & mask;
+			this.slots[i] = (((long)this.hashes[id])<<32) | ((id+1) & 0xFFFFFFFFL);
+			}
+		/** fill the (empty) slots with the blobs [0,n[ */
+		private void reindex(final int n) {
+			for(int id=0;id< n;id++) insert(id);
+			}
+		/** forget the blobs with an id greater or equal to 'n' */
+		void truncate(final int n) {
+			if(n==this.count) return;
+			Arrays.fill(this.slots, 0L);
+			reindex(n);
+			this.count = n;
+			}
+		long getAddress(final int id) {
+			return this.addresses[id];
+			}
+		int size() {
+			return this.count;
+			}
+		}
+
+	/** state of the store before a put, restored when the memory budget is exceeded in the middle of a record */
+	private class Checkpoint {
+		private final int segmentCount = segments.size();
+		private final int position = segments.isEmpty()?0:segments.get(segments.size()-1).position();
+		private final long allocated = bytesAllocated;
+		private final long used = bytesUsed;
+		private final int stringCount = strings.size();
+		void rollback() {
+			while(segments.size() > this.segmentCount) segments.remove(segments.size()-1);
+			if(!segments.isEmpty()) segments.get(segments.size()-1).position(this.position);
+			bytesAllocated = this.allocated;
+			bytesUsed = this.used;
+			strings.truncate(this.stringCount);
+			}
+		}
+
+	/** get or create the id of a string, returns OVERFLOW if the memory budget is exceeded */
+	private int stringId(final String s) {
+		if(s==null) return NO_STRING;
+		return putBlob(this.strings, s.getBytes(StandardCharsets.UTF_8));
+		}
+
+	/** returns the id of a string or -1 if it was never stored */
+	private int findString(final String s) {
+		if(s==null) return -1;
+		final byte[] utf8 = s.getBytes(StandardCharsets.UTF_8);
+		return this.strings.find(utf8, hash(utf8));
+		}
+
+	/** decode the string with the given id */
+	private String getString(int id) {
+		if(id==NO_STRING) return null;
+		final Decoder dec = new Decoder(this.strings.getAddress(id));
+		final byte[] utf8 = new byte[dec.readVarInt()];
+		dec.read(utf8);
+		return new String(utf8, StandardCharsets.UTF_8);
+		}
+
+	/** encoder for a record of 'n' items: varint(n), the n offsets of the items as 4-byte integers, the items */
+	private class Encoder {
+		private final ByteArrayOutputStream items = new ByteArrayOutputStream();
+		private final int[] offsets;
+		private int n = 0;
+		boolean overflow = false;
+		Encoder(int count) {
+			this.offsets = new int[count];
+			}
+		void beginItem() {
+			this.offsets[this.n++] = this.items.size();
+			}
+		void writeVarInt(int v) {
+			HtsjdkMetadataStore.writeVarInt(this.items, v);
+			}
+		void writeString(final String s) {
+			if(this.overflow) return;
+			final int id = stringId(s);
+			if(id==OVERFLOW) {
+				this.overflow = true;
+				return;
+				}
+			/* shift by one so NO_STRING is encoded as 0 */
+			writeVarInt(id+1);
+			}
+		void writeAttributes(final Collection<Map.Entry<String,String>> attributes) {
+			writeVarInt(attributes.size());
+			for(Map.Entry<String,String> kv: attributes) {
+				writeString(kv.getKey());
+				writeString(kv.getValue());
+				}
+			}
+		byte[] toByteArray() {
+			final ByteArrayOutputStream out = new ByteArrayOutputStream(this.items.size()+5+4*this.n);
+			HtsjdkMetadataStore.writeVarInt(out, this.n);
+			final int header = out.size() + 4*this.n;
+			for(int i=0;i< this.n;i++) {
+				final int off = header + this.offsets[i];
+				out.write(off>>>24);
+				out.write(off>>>16);
+				out.write(off>>>8);
+				out.write(off);
+				}
+			final byte[] array = this.items.toByteArray();
+			out.write(array, 0, array.length);
+			return out.toByteArray();
+			}
+		}
+
+	/** varint decoder reading a record from the segments */
+	private class Decoder {
+		private final ByteBuffer buffer;
+		private int offset;
+		Decoder(long address) {
+			this.buffer = segments.get((int)(address>>>32));
+			this.offset = (int)(address & 0xFFFFFFFFL);
+			}
+		int readVarInt() {
+			int v = 0;
+			int shift = 0;
+			for(;;) {
+				final int b = this.buffer.get(this.offset++) & 0xFF;
+				v |= (b & 0x7F) << shift;
+				if((b & 0x80)==0) return v;
+				shift+=7;
+				}
+			}
+		int readInt() {
+			final int v = this.buffer.getInt(this.offset);
+			this.offset += 4;
+			return v;
+			}
+		void read(final byte[] array) {
+			for(int i=0;i< array.length;i++) {
+				array[i] = this.buffer.get(this.offset++);
+				}
+			}
+		int readStringId() {
+			return readVarInt()-1;
+			}
+		String readString() {
+			return getString(readStringId());
+			}
+		Map<String,String> readAttributes() {
+			final int n = readVarInt();
+			final Map<String,String> hash = new LinkedHashMap<>(n);
+			for(int i=0;i< n;i++) {
+				final String key = readString();
+				hash.put(key, readString());
+				}
+			return hash;
+			}
+		}
+
+	/** decoder positioned on the i-th item of the record whose payload starts at 'payload' */
+	private Decoder item(final long payload, final int i) {
+		final Decoder dec = new Decoder(payload);
+		dec.readVarInt();
+		dec.offset += 4*i;
+		final int off = dec.readInt();
+		dec.offset = (int)(payload & 0xFFFFFFFFL) + off;
+		return dec;
+		}
+
+	/** store an encoded record or reuse an identical one, returns the address of its payload or -1 after having rolled back the store */
+	private long putRecord(final Encoder enc, final Checkpoint checkpoint) {
+		final int id = enc.overflow ? OVERFLOW : putBlob(this.records, enc.toByteArray());
+		if(id==OVERFLOW) {
+			checkpoint.rollback();
+			return -1L;
+			}
+		final Decoder dec = new Decoder(this.records.getAddress(id));
+		dec.readVarInt();
+		return address((int)(this.records.getAddress(id)>>>32), dec.offset);
+		}
+
+	/** store a dictionary, returns null if the memory budget is exceeded */
+	public synchronized DictionaryHandle putDictionary(final SAMSequenceDictionary dict) {
+		final Checkpoint checkpoint = new Checkpoint();
+		final Encoder enc = new Encoder(dict.size());
+		for(SAMSequenceRecord ssr: dict.getSequences()) {
+			enc.beginItem();
+			enc.writeString(ssr.getSequenceName());
+			enc.writeVarInt(ssr.getSequenceLength());
+			enc.writeAttributes(ssr.getAttributes());
+			}
+		final long addr = putRecord(enc, checkpoint);
+		return addr<0L?null:new DictionaryHandle(addr, dict.size());
+		}
+
+	/** store a list of read groups, returns null if the memory budget is exceeded */
+	public synchronized List<SAMReadGroupRecord> putReadGroups(final Collection<SAMReadGroupRecord> readGroups) {
+		final Checkpoint checkpoint = new Checkpoint();
+		final Encoder enc = new Encoder(readGroups.size());
+		for(SAMReadGroupRecord rg: readGroups) {
+			enc.beginItem();
+			enc.writeString(rg.getId());
+			enc.writeAttributes(rg.getAttributes());
+			}
+		final long addr = putRecord(enc, checkpoint);
+		return addr<0L?null:new ReadGroupsHandle(addr, readGroups.size());
+		}
+
+	/**
+	 * store a collection of strings (e.g. samples), returns null if the memory budget is exceeded.
+	 * If 'strings' is a Set, the returned collection is a Set too.
+	 */
+	public synchronized Collection<String> putStrings(final Collection<String> strings) {
+		final Checkpoint checkpoint = new Checkpoint();
+		final Encoder enc = new Encoder(strings.size());
+		for(String s: strings) {
+			enc.beginItem();
+			enc.writeString(s);
+			}
+		final long addr = putRecord(enc, checkpoint);
+		if(addr<0L) return null;
+		final StringsHandle handle = new StringsHandle(addr, strings.size());
+		return strings instanceof Set ? new StringSetHandle(handle) : handle;
+		}
+
+	/** memory budget in bytes */
+	public long getMaxMemory() {
+		return this.maxMemory;
+		}
+
+	/** bytes of direct memory allocated by this store */
+	public synchronized long getBytesAllocated() {
+		return this.bytesAllocated;
+		}
+
+	/** bytes of direct memory used by the encoded strings and records */
+	public synchronized long getBytesUsed() {
+		return this.bytesUsed;
+		}
+
+	/** number of deduplicated strings */
+	public synchronized int getStringCount() {
+		return this.strings.size();
+		}
+
+	/** number of deduplicated records */
+	public synchronized long getRecordCount() {
+		return this.records.size();
+		}
+
+	/** footprint of the store as a map */
+	public synchronized Map<String,Object> getFootprint() {
+		final Map<String,Object> hash = new LinkedHashMap<>();
+		hash.put("maxMemory", this.maxMemory);
+		hash.put("bytesAllocated", this.bytesAllocated);
+		hash.put("bytesUsed", this.bytesUsed);
+		hash.put("strings", this.strings.size());
+		hash.put("records", (long)this.records.size());
+		return hash;
+		}
+
+	@Override
+	public String toString() {
+		return "HtsjdkMetadataStore"+getFootprint();
+		}
+
+	/** base class of the read-only lists decoded from the store. Items are decoded each time they are accessed. */
+	private abstract class AbstractHandle<T> extends AbstractList<T> {
+		protected final long address;
+		private final int size;
+		AbstractHandle(long address,int size) {
+			this.address = address;
+			this.size = size;
+			}
+		@Override
+		public int size() {
+			return this.size;
+			}
+		abstract T decodeItem(final Decoder dec);
+
+		@Override
+		public T get(int index) {
+			if(index<0 || index>=this.size) throw new IndexOutOfBoundsException("index "+index+" out of "+this.size);
+			synchronized(HtsjdkMetadataStore.this) {
+				return decodeItem(item(this.address, index));
+				}
+			}
+		}
+
+	private class StringsHandle extends AbstractHandle<String> {
+		StringsHandle(long address,int size) {
+			super(address, size);
+			}
+		@Override
+		String decodeItem(final Decoder dec) {
+			return dec.readString();
+			}
+		/** compare the string ids, without decoding the strings */
+		@Override
+		public int indexOf(final Object o) {
+			if(!(o instanceof String)) return -1;
+			synchronized(HtsjdkMetadataStore.this) {
+				final int id = findString(String.class.cast(o));
+				if(id<0) return -1;
+				for(int i=0;i< size();i++) {
+					if(item(this.address, i).readStringId()==id) return i;
+					}
+				}
+			return -1;
+			}
+		@Override
+		public boolean contains(final Object o) {
+			return indexOf(o)!=-1;
+			}
+		}
+
+	/** the samples of a BAM are a Set */
+	private class StringSetHandle extends AbstractSet<String> {
+		private final StringsHandle delegate;
+		StringSetHandle(final StringsHandle delegate) {
+			this.delegate = delegate;
+			}
+		@Override
+		public int size() {
+			return this.delegate.size();
+			}
+		@Override
+		public Iterator<String> iterator() {
+			return this.delegate.iterator();
+			}
+		@Override
+		public boolean contains(final Object o) {
+			return this.delegate.contains(o);
+			}
+		}
+
+	private class ReadGroupsHandle extends AbstractHandle<SAMReadGroupRecord> {
+		ReadGroupsHandle(long address,int size) {
+			super(address, size);
+			}
+		@Override
+		SAMReadGroupRecord decodeItem(final Decoder dec) {
+			final SAMReadGroupRecord rg = new SAMReadGroupRecord(dec.readString());
+			for(Map.Entry<String,String> kv: dec.readAttributes().entrySet()) {
+				rg.setAttribute(kv.getKey(), kv.getValue());
+				}
+			return rg;
+			}
+		}
+
+	/**
+	 * read-only handle on a SAMSequenceDictionary stored off-heap. It is not a SAMSequenceDictionary
+	 * but it provides its query methods, each item being decoded when it is accessed. Use {@link #decode()}
+	 * to get a plain SAMSequenceDictionary.
+	 */
+	public class DictionaryHandle {
+		private final long address;
+		private final int size;
+		DictionaryHandle(long address,int size) {
+			this.address = address;
+			this.size = size;
+			}
+		/** number of contigs */
+		public int size() {
+			return this.size;
+			}
+		public boolean isEmpty() {
+			return this.size==0;
+			}
+		/** decode the whole dictionary */
+		public SAMSequenceDictionary decode() {
+			return new SAMSequenceDictionary(getSequences());
+			}
+		/** decode the contigs, with their index set */
+		public List<SAMSequenceRecord> getSequences() {
+			final List<SAMSequenceRecord> L = new ArrayList<>(this.size);
+			for(int i=0;i< this.size;i++) {
+				L.add(getSequence(i));
+				}
+			return L;
+			}
+		/** get contig by index or null */
+		public SAMSequenceRecord getSequence(int tid) {
+			if(tid<0 || tid>=this.size) return null;
+			synchronized(HtsjdkMetadataStore.this) {
+				final Decoder dec = item(this.address, tid);
+				final SAMSequenceRecord ssr = new SAMSequenceRecord(dec.readString(), dec.readVarInt());
+				for(Map.Entry<String,String> kv: dec.readAttributes().entrySet()) {
+					ssr.setAttribute(kv.getKey(), kv.getValue());
+					}
+				ssr.setSequenceIndex(tid);
+				return ssr;
+				}
+			}
+		/** get contig by name or null */
+		public SAMSequenceRecord getSequence(final String name) {
+			return getSequence(getSequenceIndex(name));
+			}
+		/** get the index of a contig or -1. Only the ids of the names are compared, no contig is decoded */
+		public int getSequenceIndex(final String name) {
+			synchronized(HtsjdkMetadataStore.this) {
+				final int id = findString(name);
+				if(id<0) return -1;
+				for(int i=0;i< this.size;i++) {
+					if(item(this.address, i).readStringId()==id) return i;
+					}
+				}
+			return -1;
+			}
+		/** sum of the contig lengths */
+		public long getReferenceLength() {
+			long n = 0L;
+			synchronized(HtsjdkMetadataStore.this) {
+				for(int i=0;i< this.size;i++) {
+					final Decoder dec = item(this.address, i);
+					dec.readVarInt();
+					n += dec.readVarInt();
+					}
+				}
+			return n;
+			}
+		/** md5 of the dictionary, as SAMSequenceDictionary.md5() */
+		public String md5() {
+			return decode().md5();
+			}
+		public boolean isSameDictionary(final SAMSequenceDictionary that) {
+			return that!=null && decode().isSameDictionary(that);
+			}
+		public void assertSameDictionary(final SAMSequenceDictionary that) {
+			decode().assertSameDictionary(that);
+			}
+		private HtsjdkMetadataStore getStore() {
+			return HtsjdkMetadataStore.this;
+			}
+		/** identical dictionaries are stored once, so two handles on the same record of the same store are equal */
+		@Override
+		public boolean equals(final Object o) {
+			if(o==this) return true;
+			if(!(o instanceof DictionaryHandle)) return false;
+			final DictionaryHandle other = DictionaryHandle.class.cast(o);
+			return other.getStore()==getStore() && other.address==this.address;
+			}
+		@Override
+		public int hashCode() {
+			return System.identityHashCode(getStore()) * 31 + Long.hashCode(this.address);
+			}
+		@Override
+		public String toString() {
+			return "DictionaryHandle(contigs:"+this.size+")";
+			}
+		}
+	}
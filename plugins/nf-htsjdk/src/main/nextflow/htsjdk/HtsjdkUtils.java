@@ -44,6 +44,7 @@ import java.util.Collections;
 import java.util.List;
 import java.util.Map;
 import java.util.Optional;
+import java.util.concurrent.atomic.AtomicReference;
 import java.util.function.Predicate;
 import java.util.stream.Collectors;
 import java.util.zip.GZIPInputStream;
@@ -93,7 +94,6 @@ import htsjdk.variant.vcf.VCFHeader;
 import htsjdk.variant.vcf.VCFIterator;
 import htsjdk.variant.vcf.VCFIteratorBuilder;
 import htsjdk.samtools.util.IOUtil;
-import htsjdk.samtools.util.IntervalList;
 import htsjdk.samtools.util.StringUtil;
 
 
@@ -184,7 +184,8 @@ public class HtsjdkUtils {
 	    };
 		
 	    
-	private static List<Build> BUILDS = null;
+	/** default builds from BUILD_RESOURCE, parsed on first use */
+	private static final AtomicReference<List<Build>> BUILDS = new AtomicReference<>();
 	
 	/** warpper around HTS files (bam, cram, vcf, fasta, etc...) */
     public static interface HtsSource {
@@ -230,6 +231,9 @@ public class HtsjdkUtils {
         default boolean isIntervalList() {
         	 return hasSuffix(FileExtensions.INTERVAL_LIST) || hasSuffix(FileExtensions.COMPRESSED_INTERVAL_LIST);
         	}
+        default boolean isBed() {
+        	 return hasSuffix(".bed") || hasSuffix(".bed.gz");
+        	}
         
         
         Path asPath();
@@ -253,8 +257,14 @@ public class HtsjdkUtils {
         
     	public default SAMFileHeader extractSamFileHeader() throws IOException {
     		if(isIntervalList()) {
+    			/* only decode the '@' lines, the intervals themselves are never loaded */
     			try(BufferedReader r=this.openBufferedReader()) {
-    				return IntervalList.fromReader(r).getHeader();
+    				final StringBuilder sb = new StringBuilder();
+    				String line;
+    				while((line=r.readLine())!=null && line.startsWith("@")) {
+    					sb.append(line).append('\n');
+    					}
+    				return new SAMTextHeaderCodec().decode(BufferedLineReader.fromString(sb.toString()), getPath());
     				}
     			}
     		if(!isBamCramSam()) {
@@ -307,6 +317,9 @@ public class HtsjdkUtils {
     			dict=header.getSequenceDictionary();
     			if(dict==null)  throw new IOException("there is no dictionary (lines starting with '##"+VCFConstants.CONTIG_HEADER_KEY+"') in header of VCF file "+getPath());
     			}
+    		else if(this.isIntervalList()) {
+    			dict = extractSamFileHeader().getSequenceDictionary();
+    			}
     		else if(this.isLocal() && !this.hasSuffix(FileExtensions.FASTA_INDEX)) {
     			dict =	SAMSequenceDictionaryExtractor.extractDictionary(this.asPath());
     			}
@@ -515,35 +528,40 @@ public class HtsjdkUtils {
     	throw new IllegalStateException("error in XML");
     	}
     
-    private static synchronized List<Build> getDefaultBuilds() {
-    	if(BUILDS==null) {
-    		synchronized (HtsjdkUtils.class) {
-    			if(BUILDS==null) {
-    				BUILDS= new ArrayList<>();
-    				try(InputStream in = HtsjdkUtils.class.getResourceAsStream(BUILD_RESOURCE)) {
-    					
-    					if(in!=null) {
-    						XMLInputFactory xif = XMLInputFactory.newFactory();
-    						XMLEventReader xr = xif.createXMLEventReader(in);
-    						while(xr.hasNext()) {
-    							XMLEvent evt = xr.nextEvent();
-    							if(evt.isStartElement() && evt.asStartElement().getName().getLocalPart().equals("build")) {
-    								BUILDS.add(parseBuild(xr));
-    								}
-    							}
-    						}
-    					}
-    				catch(final IOException|XMLStreamException err) {
-    					err.printStackTrace();
-	    				}
-	    			}
-				}
-	    	}
-    	return BUILDS;
+    static List<Build> getDefaultBuilds() {
+    	List<Build> builds = BUILDS.get();
+    	if(builds==null) {
+    		/* parsing is idempotent: if two threads race, the first published list wins */
+    		BUILDS.compareAndSet(null, Collections.unmodifiableList(parseDefaultBuilds()));
+    		builds = BUILDS.get();
+    		}
+    	return builds;
     	}
-    
 
-   
+    private static List<Build> parseDefaultBuilds() {
+    	return parseBuilds(BUILD_RESOURCE);
+    	}
+
+    /** parse the builds of a XML resource. Throws an IllegalStateException if the resource is missing or cannot be parsed, so no partial list is ever published */
+    static List<Build> parseBuilds(final String resource) {
+    	final List<Build> builds = new ArrayList<>();
+    	try(InputStream in = HtsjdkUtils.class.getResourceAsStream(resource)) {
+    		if(in==null) throw new IllegalStateException("cannot find resource "+resource);
+    		XMLInputFactory xif = XMLInputFactory.newFactory();
+    		XMLEventReader xr = xif.createXMLEventReader(in);
+    		while(xr.hasNext()) {
+    			XMLEvent evt = xr.nextEvent();
+    			if(evt.isStartElement() && evt.asStartElement().getName().getLocalPart().equals("build")) {
+    				builds.add(parseBuild(xr));
+    				}
+    			}
+    		}
+    	catch(final IOException|XMLStreamException err) {
+    		throw new IllegalStateException("cannot parse the builds in "+resource, err);
+    		}
+    	return builds;
+    	}
+    
 
    @SuppressWarnings("rawtypes")
    static List<Build> decodeBuilds(final Object o1) {
@@ -605,8 +623,8 @@ public class HtsjdkUtils {
 				{
 				throw new IllegalArgumentException("config htsjdk : builds["+i+"].chromosomes["+j+"].length is undefined");
 				}
-			builds.add(buildImpl);
 			}
+		builds.add(buildImpl);
 		}
 	return builds;
    	}
@@ -0,0 +1,55 @@
+package nextflow.htsjdk
+
+import spock.lang.Specification
+
+/**
+ * Unit test for the plugin configuration
+ *
+ * @author : Pierre Lindenbaum univ-nantes.fr
+ */
+class HtsjdkConfigTest extends Specification {
+
+    def 'should not decode the builds before they are used' () {
+        when:
+        def config = new HtsjdkConfig([builds: [[name: 'rotavirus', chromosomes: [[name: 'RF01', length: 3302], [name: 'RF02', length: 2687]]]]])
+        then:
+        !config.isBuildsResolved()
+
+        when:
+        def builds = config.getBuilds()
+        then:
+        config.isBuildsResolved()
+        builds.size() == 1
+        builds[0].getId() == 'rotavirus'
+        config.getBuilds().is(builds)
+    }
+
+    def 'should only report invalid builds when they are used' () {
+        when:
+        def config = new HtsjdkConfig([builds: 'not a list'])
+        then:
+        noExceptionThrown()
+        !config.isBuildsResolved()
+
+        when:
+        config.getBuilds()
+        then:
+        thrown(IllegalArgumentException)
+    }
+
+    def 'should use the default builds' () {
+        when:
+        def config = new HtsjdkConfig(null)
+        then:
+        !config.isBuildsResolved()
+        config.getBuilds().any { it.getId() == 'rotavirus' }
+        config.getBuilds().is(HtsjdkUtils.getDefaultBuilds())
+    }
+
+    def 'should fail rather than return a partial list of builds' () {
+        when:
+        HtsjdkUtils.parseBuilds('/META-INF/no-such-builds.xml')
+        then:
+        thrown(IllegalStateException)
+    }
+}
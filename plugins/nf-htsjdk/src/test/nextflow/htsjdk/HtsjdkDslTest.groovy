@@ -306,4 +306,164 @@ class HtsjdkDslTest extends Dsl2Spec{
 			result.val == Channel.STOP
 		
 	}
+	def 'sortIntervals with bed' () {
+		when:
+		def SCRIPT = '''
+            include {sortIntervals} from 'plugin/nf-htsjdk'
+            channel
+                .fromPath('../../data/rotavirus_rf.bed.gz')
+                .map{sortIntervals(it,[dictionary:'../../data/rotavirus_rf.dict', maxRecordsInRam:5, output: java.nio.file.Files.createTempFile('test','.interval_list')])}
+                .map{it.readLines().findAll{!it.startsWith('@')}}
+                .map{[it.size(),it[0]]}
+        '''
+		and:
+			def result = new MockScriptRunner([:]).setScript(SCRIPT).execute()
+		then:
+			result.val == [38, "RF01\t970\t970\t+\tA/C"]
+			result.val == Channel.STOP
+	}
+
+	def 'padIntervals with bed' () {
+		when:
+		def SCRIPT = '''
+            include {padIntervals} from 'plugin/nf-htsjdk'
+            channel
+                .fromPath('../../data/rotavirus_rf.bed.gz')
+                .map{padIntervals(it,[dictionary:'../../data/rotavirus_rf.dict', padding:10, output: java.nio.file.Files.createTempFile('test','.bed')])}
+                .map{it.readLines()[0]}
+        '''
+		and:
+			def result = new MockScriptRunner([:]).setScript(SCRIPT).execute()
+		then:
+			result.val == "RF01\t959\t980\tA/C\t0\t+"
+			result.val == Channel.STOP
+	}
+
+	def 'intersectIntervals and subtractIntervals with interval_list and bed' () {
+		when:
+		def SCRIPT = '''
+            include {intersectIntervals; subtractIntervals} from 'plugin/nf-htsjdk'
+            channel
+                .fromPath('../../data/rotavirus_rf.interval_list.gz')
+                .map{[
+                    intersectIntervals(it,'../../data/rotavirus_rf.bed.gz',[output: java.nio.file.Files.createTempFile('test','.bed')]),
+                    subtractIntervals(it,'../../data/rotavirus_rf.bed.gz',[output: java.nio.file.Files.createTempFile('test','.bed')])
+                    ]}
+                .map{[it[0].readLines(),it[1].readLines()]}
+        '''
+		and:
+			def result = new MockScriptRunner([:]).setScript(SCRIPT).execute()
+			def row = result.val
+		then:
+			row[0].size() == 38
+			row[0][0..1] == ["RF01\t969\t970\t.\t0\t+", "RF02\t250\t251\t.\t0\t+"]
+			row[1].size() == 49
+			row[1][0..2] == ["RF01\t0\t969\t.\t0\t+", "RF01\t970\t3302\t.\t0\t+", "RF02\t0\t250\t.\t0\t+"]
+			result.val == Channel.STOP
+	}
+
+	def 'intersectIntervals and subtractIntervals ignore zero-length intervals' () {
+		when:
+		def SCRIPT = '''
+            include {intersectIntervals; subtractIntervals} from 'plugin/nf-htsjdk'
+            def other = java.nio.file.Files.createTempFile('test','.bed')
+            other.text = "RF01\\t49\\t49\\nRF01\\t99\\t100\\n"
+            channel
+                .fromPath('../../data/rotavirus_rf.interval_list')
+                .map{[
+                    intersectIntervals(it,other,[output: java.nio.file.Files.createTempFile('test','.bed')]),
+                    subtractIntervals(it,other,[output: java.nio.file.Files.createTempFile('test','.bed')])
+                    ]}
+                .map{[it[0].readLines(),it[1].readLines().take(2)]}
+        '''
+		and:
+			def result = new MockScriptRunner([:]).setScript(SCRIPT).execute()
+		then:
+			result.val == [["RF01\t99\t100\t.\t0\t+"], ["RF01\t0\t99\t.\t0\t+", "RF01\t100\t3302\t.\t0\t+"]]
+			result.val == Channel.STOP
+	}
+
+	def 'mergeIntervals with overlapping and abutting intervals from two files' () {
+		when:
+		def SCRIPT = '''
+            include {mergeIntervals} from 'plugin/nf-htsjdk'
+            def f1 = java.nio.file.Files.createTempFile('test1','.bed')
+            f1.text = "RF01\\t10\\t20\\nRF01\\t30\\t40\\n"
+            def f2 = java.nio.file.Files.createTempFile('test2','.bed')
+            f2.text = "RF02\\t0\\t5\\nRF01\\t15\\t25\\nRF01\\t40\\t50\\n"
+            channel
+                .of([f1,f2])
+                .map{mergeIntervals(it,[dictionary:'../../data/rotavirus_rf.dict', output: java.nio.file.Files.createTempFile('test','.bed')])}
+                .map{it.readLines()}
+        '''
+		and:
+			def result = new MockScriptRunner([:]).setScript(SCRIPT).execute()
+		then:
+			result.val == ["RF01\t10\t25\t.\t0\t+", "RF01\t30\t50\t.\t0\t+", "RF02\t0\t5\t.\t0\t+"]
+			result.val == Channel.STOP
+	}
+
+	def 'samples and dictionary with off-heap metadataStore' () {
+		when:
+		def SCRIPT = '''
+            include {samples; dictionary; metadataStoreFootprint} from 'plugin/nf-htsjdk'
+            channel
+                .fromPath('../../data/rotavirus_rf.vcf.gz')
+                .map{[samples(it), dictionary(it)]}
+                .map{[it[0].join(','), it[1].getSequences()[1].getSequenceName(), it[1].getSequenceIndex('RF03'), metadataStoreFootprint().records]}
+        '''
+		and:
+			def result = new MockScriptRunner([htsjdk:[metadataStore:[enabled:true, maxMemory:'10 MB']]]).setScript(SCRIPT).execute()
+		then:
+			result.val == ["S1,S2,S3,S4,S5", "RF02", 2, 2L]
+			result.val == Channel.STOP
+	}
+	def 'genotypeMatrix with vcf' () {
+		when:
+		def SCRIPT = '''
+            include {genotypeMatrix} from 'plugin/nf-htsjdk'
+            channel
+                .fromPath('../../data/rotavirus_rf.vcf.gz')
+                .map{genotypeMatrix(it,[samples:['S4'], regions:'RF05'])}
+                .map{[it.getSiteCount(), it.countCalls(0).toList()]}
+        '''
+		and:
+			def result = new MockScriptRunner([:]).setScript(SCRIPT).execute()
+		then:
+			result.val == [6, [4, 1, 1, 0]]
+			result.val == Channel.STOP
+	}
+	def 'genotypeMatrix with chunkSize' () {
+		when:
+		def SCRIPT = '''
+            include {genotypeMatrix} from 'plugin/nf-htsjdk'
+            channel
+                .fromPath('../../data/rotavirus_rf.vcf.gz')
+                .flatMap{genotypeMatrix(it,[chunkSize:3])}
+                .map{[it.getSiteCount(), it.getPosition(0)]}
+        '''
+		and:
+			def result = new MockScriptRunner([:]).setScript(SCRIPT).execute()
+		then:
+			result.val == [3, 41]
+			result.val == [3, 879]
+			result.val == [1, 74]
+			result.val == Channel.STOP
+	}
+	def 'builds are not parsed when build() is not called' () {
+		when:
+		def SCRIPT = '''
+            include {samples} from 'plugin/nf-htsjdk'
+            channel
+                .fromPath('../../data/S1.rota.bam')
+                .map{[samples(it),it]}
+                .flatMap{row->row[0].collect{sn->[sn,row[1]]}}
+        '''
+		and:
+			// an invalid catalogue would throw if it was decoded at startup
+			def result = new MockScriptRunner([htsjdk:[builds:'not a list']]).setScript(SCRIPT).execute()
+		then:
+			result.val[0] == "S1"
+			result.val == Channel.STOP
+	}
 }
@@ -0,0 +1,132 @@
+package nextflow.htsjdk
+
+import htsjdk.variant.variantcontext.GenotypeType
+import htsjdk.variant.vcf.VCFFileReader
+import spock.lang.Specification
+
+import java.nio.file.Files
+import java.nio.file.Paths
+
+/**
+ * Unit test for the genotype matrix, the calls are compared with the htsjdk genotypes
+ *
+ * @author : Pierre Lindenbaum univ-nantes.fr
+ */
+class HtsjdkGenotypeMatrixTest extends Specification {
+
+    static int expectedCall(GenotypeType t) {
+        switch(t) {
+            case GenotypeType.HOM_REF: return HtsjdkGenotypeMatrix.HOM_REF
+            case GenotypeType.HET: return HtsjdkGenotypeMatrix.HET
+            case GenotypeType.HOM_VAR: return HtsjdkGenotypeMatrix.HOM_VAR
+            default: return HtsjdkGenotypeMatrix.NO_CALL
+        }
+    }
+
+    def 'should match the htsjdk genotypes' () {
+        given:
+        def variants = new VCFFileReader(Paths.get('../../data/rotavirus_rf.vcf.gz'), false).withCloseable { it.iterator().toList() }
+
+        when:
+        def source = HtsjdkUtils.toHtsSource(path).get()
+        def matrix = new HtsjdkGenotypeMatrix.Reader(source, null, [], Integer.MAX_VALUE).readAll()
+
+        then:
+        matrix.getSampleCount() == 5
+        matrix.getSamples() == ['S1','S2','S3','S4','S5']
+        matrix.getSiteCount() == variants.size()
+        variants.eachWithIndex { ctx, site ->
+            assert matrix.getContig(site) == ctx.getContig()
+            assert matrix.getPosition(site) == ctx.getStart()
+            assert matrix.getReference(site) == ctx.getReference().getDisplayString()
+            ctx.getGenotypes().eachWithIndex { g, sample ->
+                assert matrix.getCall(site, sample) == expectedCall(g.getType())
+            }
+        }
+
+        where:
+        path << ['../../data/rotavirus_rf.vcf.gz', '../../data/rotavirus_rf.bcf']
+    }
+
+    def 'should subset samples, query regions and read chunks' () {
+        given:
+        def source = HtsjdkUtils.toHtsSource('../../data/rotavirus_rf.vcf.gz').get()
+        def all = new HtsjdkGenotypeMatrix.Reader(source, null, [], Integer.MAX_VALUE).readAll()
+
+        when:
+        def subset = new HtsjdkGenotypeMatrix.Reader(source, ['S4','S2'], [], Integer.MAX_VALUE).readAll()
+        then:
+        subset.getSamples() == ['S4','S2']
+        (0..<all.getSiteCount()).every { subset.getCall(it, 0) == all.getCall(it, 3) && subset.getCall(it, 1) == all.getCall(it, 1) }
+
+        when:
+        def regions = HtsjdkGenotypeMatrix.parseRegions(['RF05:1-500', 'RF05:400-800'])
+        def queried = new HtsjdkGenotypeMatrix.Reader(source, null, regions, Integer.MAX_VALUE).readAll()
+        then:
+        regions.size() == 1
+        (0..<queried.getSiteCount()).collect { queried.getPosition(it) } == [41, 499, 795]
+
+        when:
+        def chunks = new HtsjdkGenotypeMatrix.Reader(source, null, [], 3).toList()
+        then:
+        chunks*.getSiteCount() == [3, 3, 1]
+        chunks[2].getPosition(0) == all.getPosition(6)
+
+        when:
+        def collection = new HtsjdkGenotypeMatrix.Chunks(source, null, [], 3)
+        then:
+        collection.size() == 3
+        collection.collect { it.getSiteCount() } == [3, 3, 1]
+    }
+
+    def 'should query the regions with any index' () {
+        given:
+        // copy the file with only the requested index
+        def dir = Files.createTempDirectory('gtmatrix')
+        def copy = dir.resolve(filename)
+        Files.copy(Paths.get('../../data/' + filename), copy)
+        if (index != null) Files.copy(Paths.get('../../data/' + filename + index), dir.resolve(filename + index))
+        def source = HtsjdkUtils.toHtsSource(copy.toString()).get()
+
+        when:
+        def regions = HtsjdkGenotypeMatrix.parseRegions(['RF05:1-800', 'RF11', 'RF01'])
+        def queried = new HtsjdkGenotypeMatrix.Reader(source, null, regions, Integer.MAX_VALUE).readAll()
+
+        then:
+        (0..<queried.getSiteCount()).collect { queried.getContig(it) + ':' + queried.getPosition(it) } == ['RF05:41', 'RF05:499', 'RF05:795', 'RF11:74']
+
+        when:
+        // two disjoint regions on the same contig: a site must not be reported twice
+        def disjoint = new HtsjdkGenotypeMatrix.Reader(source, null, HtsjdkGenotypeMatrix.parseRegions(['RF05:1-100', 'RF05:700-800']), Integer.MAX_VALUE).readAll()
+
+        then:
+        (0..<disjoint.getSiteCount()).collect { disjoint.getPosition(it) } == [41, 795]
+
+        cleanup:
+        dir.toFile().deleteDir()
+
+        where:
+        filename                 | index
+        'rotavirus_rf.vcf.gz'    | '.tbi'
+        'rotavirus_rf.vcf.gz'    | '.csi'
+        'rotavirus_rf.vcf.gz'    | null
+        'rotavirus_rf.bcf'       | '.csi'
+        'rotavirus_rf.bcf'       | null
+    }
+
+    def 'should account for the ID, REF and ALT in the byte size' () {
+        given:
+        def source = HtsjdkUtils.toHtsSource('../../data/rotavirus_rf.vcf.gz').get()
+        def variants = new VCFFileReader(Paths.get('../../data/rotavirus_rf.vcf.gz'), false).withCloseable { it.iterator().toList() }
+
+        when:
+        def matrix = new HtsjdkGenotypeMatrix.Reader(source, null, [], Integer.MAX_VALUE).readAll()
+
+        then:
+        variants.eachWithIndex { ctx, site ->
+            assert matrix.getId(site) == (ctx.hasID() ? ctx.getID() : null)
+            assert matrix.getAlternate(site) == ctx.getAlternateAlleles()*.getDisplayString().join(',')
+        }
+        matrix.getByteSize() >= variants.sum { ctx -> ctx.getReference().getDisplayString().length() + ctx.getAlternateAlleles()*.getDisplayString().join(',').length() }
+    }
+}
@@ -0,0 +1,121 @@
+package nextflow.htsjdk
+
+import htsjdk.samtools.SAMReadGroupRecord
+import htsjdk.samtools.SAMSequenceDictionary
+import htsjdk.samtools.SAMSequenceRecord
+import spock.lang.Specification
+
+/**
+ * Unit test for the off-heap metadata store
+ *
+ * @author : Pierre Lindenbaum univ-nantes.fr
+ */
+class HtsjdkMetadataStoreTest extends Specification {
+
+    def 'should store and decode metadata' () {
+        given:
+        def store = new HtsjdkMetadataStore(10*1024*1024)
+        def ssr = new SAMSequenceRecord("chr1", 1000)
+        ssr.setMd5("0123456789abcdef")
+        def dict = new SAMSequenceDictionary([ssr, new SAMSequenceRecord("chr2", 2000)])
+        def rg = new SAMReadGroupRecord("RG1")
+        rg.setSample("S1")
+        rg.setLibrary("L1")
+
+        when:
+        def dictHandle = store.putDictionary(dict)
+        def rgHandle = store.putReadGroups([rg])
+        def samplesHandle = store.putStrings(["S1", "S2", "S1"])
+
+        then:
+        dictHandle.size() == 2
+        dictHandle.decode().getSequence("chr1").getMd5() == "0123456789abcdef"
+        dictHandle.getSequence(1).getSequenceLength() == 2000
+        dictHandle.getSequence(1).getSequenceIndex() == 1
+        rgHandle.size() == 1
+        rgHandle[0].getId() == "RG1"
+        rgHandle[0].getSample() == "S1"
+        rgHandle[0].getLibrary() == "L1"
+        samplesHandle == ["S1", "S2", "S1"]
+        store.getRecordCount() == 3
+        // 'S1' is stored only once
+        store.getStringCount() == ["chr1", "chr2", "M5", "0123456789abcdef", "RG1", "SM", "LB", "L1", "S1", "S2"].toSet().size()
+    }
+
+    def 'should return null when the memory budget is exceeded' () {
+        given:
+        def store = new HtsjdkMetadataStore(1024*1024)
+
+        when:
+        def handle = store.putStrings((0..<100_000).collect{"sample_"+it})
+
+        then:
+        handle == null
+        // the strings added before the overflow were rolled back
+        store.getStringCount() == 0
+        store.getBytesUsed() == 0
+        store.getBytesAllocated() == 0
+
+        when:
+        def small = store.putStrings(["sample_1", "x"])
+
+        then:
+        small == ["sample_1", "x"]
+        store.getStringCount() == 2
+    }
+
+    def 'should reuse identical records' () {
+        given:
+        def store = new HtsjdkMetadataStore(10*1024*1024)
+        def dict = new SAMSequenceDictionary((1..1000).collect{new SAMSequenceRecord("chr"+it, 1000+it)})
+
+        when:
+        def h1 = store.putDictionary(dict)
+        def used = store.getBytesUsed()
+        def h2 = store.putDictionary(new SAMSequenceDictionary((1..1000).collect{new SAMSequenceRecord("chr"+it, 1000+it)}))
+
+        then:
+        // the second dictionary is a handle on the first record
+        store.getRecordCount() == 1
+        store.getBytesUsed() == used
+        h2.getSequence(999).getSequenceName() == "chr1000"
+        // handles on equal dictionaries are equal, as SAMSequenceDictionary
+        h1 == h2
+        h1.hashCode() == h2.hashCode()
+        [h1, h2].unique().size() == 1
+        h1 != store.putDictionary(new SAMSequenceDictionary([new SAMSequenceRecord("chr1", 1)]))
+    }
+
+    def 'should query the dictionary without decoding it' () {
+        given:
+        def store = new HtsjdkMetadataStore(10*1024*1024)
+        def dict = new SAMSequenceDictionary((1..1000).collect{new SAMSequenceRecord("chr"+it, 1000+it)})
+
+        when:
+        def handle = store.putDictionary(dict)
+
+        then:
+        handle.getSequenceIndex("chr500") == dict.getSequenceIndex("chr500")
+        handle.getSequenceIndex("chrUn") == -1
+        handle.getSequence("chr500").getSequenceLength() == 1500
+        handle.getSequence("chrUn") == null
+        handle.getSequence(1000) == null
+        handle.getReferenceLength() == dict.getReferenceLength()
+        handle.md5() == dict.md5()
+        handle.isSameDictionary(dict)
+    }
+
+    def 'should keep the set semantics of the samples' () {
+        given:
+        def store = new HtsjdkMetadataStore(10*1024*1024)
+
+        when:
+        def samples = store.putStrings(["S1", "S2"].toSet())
+
+        then:
+        samples instanceof Set
+        samples == ["S2", "S1"].toSet()
+        samples.contains("S1")
+        !samples.contains("S3")
+    }
+}